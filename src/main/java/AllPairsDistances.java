@@ -0,0 +1,298 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+public class AllPairsDistances {
+    private final int tileSize, threads;
+
+    /**
+     * Computes the distance of every pair of rows of a projected matrix. The pairs are split into square tiles of
+     * rows that fit in cache together, and the tiles are shared between the threads
+     * @param tileSize The rows per tile side
+     * @param threads The number of threads
+     */
+    public AllPairsDistances(int tileSize, int threads) {
+        if (tileSize < 1 || threads < 1) {
+            throw new IllegalArgumentException("tileSize and threads must be at least 1");
+        }
+        this.tileSize = tileSize;
+        this.threads = threads;
+    }
+
+    /**
+     * Creates the engine from -DpairTile, by default the rows that fit two tiles in 256KB, and -Dthreads
+     * @param dimensions The projected dimensions
+     * @return The engine
+     */
+    public static AllPairsDistances fromProperties(int dimensions) {
+        int tileSize = Integer.getInteger("pairTile", Math.max(8, (128 * 1024) / (Math.max(1, dimensions) * Double.BYTES)));
+        return new AllPairsDistances(tileSize, Integer.getInteger("threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Sends every pair of rows i < j to a sink, each thread fills its own sink so they need no locking
+     * @param rows The projected rows, row-major
+     * @param size The number of rows
+     * @param dimensions The projected dimensions
+     * @param sinks Creates a sink per thread
+     * @return The sinks, to be merged
+     */
+    public <S extends PairSink> List<S> compute(double[] rows, int size, int dimensions, Supplier<S> sinks) throws InterruptedException {
+        // Tiles on and above the diagonal
+        int blocks = (size + tileSize - 1) / tileSize;
+        int[] tileRows = new int[(blocks * (blocks + 1)) / 2], tileColumns = new int[tileRows.length];
+        int tiles = 0;
+        for (int row = 0; row < blocks; row++) {
+            for (int column = row; column < blocks; column++) {
+                tileRows[tiles] = row;
+                tileColumns[tiles++] = column;
+            }
+        }
+
+        int workerCount = Math.max(1, Math.min(threads, tiles));
+        List<S> results = new ArrayList<>(workerCount);
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(workerCount);
+        try {
+            List<Future<?>> futures = new ArrayList<>(workerCount);
+            for (int w = 0; w < workerCount; w++) {
+                S sink = sinks.get();
+                results.add(sink);
+                futures.add(workers.submit(() -> {
+                    int tile;
+                    while ((tile = next.getAndIncrement()) < tileRows.length) {
+                        computeTile(rows, size, dimensions, tileRows[tile] * tileSize, tileColumns[tile] * tileSize, sink);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : new RuntimeException(e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * Collects every pair's distance into primitive buffers split by label
+     * @param rows The projected rows, row-major
+     * @param size The number of rows
+     * @param dimensions The projected dimensions
+     * @param labeler Labels the pairs of the same subject
+     * @return The distances
+     */
+    public Buffers collect(double[] rows, int size, int dimensions, PairLabeler labeler) throws InterruptedException {
+        List<Buffers> parts = compute(rows, size, dimensions, () -> new Buffers(labeler));
+        Buffers buffers = parts.get(0);
+        for (int i = 1; i < parts.size(); i++) {
+            buffers.merge(parts.get(i));
+        }
+        return buffers;
+    }
+
+    /**
+     * Counts every pair's distance into fixed-width bins split by label, so memory does not grow with the pairs
+     * @param rows The projected rows, row-major
+     * @param size The number of rows
+     * @param dimensions The projected dimensions
+     * @param labeler Labels the pairs of the same subject
+     * @param maxDistance The upper edge of the last bin, larger distances are counted in it
+     * @param bins The number of bins
+     * @return The histogram
+     */
+    public Histogram histogram(double[] rows, int size, int dimensions, PairLabeler labeler, double maxDistance, int bins) throws InterruptedException {
+        List<Histogram> parts = compute(rows, size, dimensions, () -> new Histogram(labeler, maxDistance, bins));
+        Histogram histogram = parts.get(0);
+        for (int i = 1; i < parts.size(); i++) {
+            histogram.merge(parts.get(i));
+        }
+        return histogram;
+    }
+
+    /**
+     * The Euclidean distances between two tiles, only pairs i < j on the diagonal. Summed in dimension order, the
+     * same as DoubleFVComparison.EUCLIDEAN
+     */
+    private void computeTile(double[] rows, int size, int dimensions, int rowStart, int columnStart, PairSink sink) {
+        int rowEnd = Math.min(size, rowStart + tileSize), columnEnd = Math.min(size, columnStart + tileSize);
+        for (int i = rowStart; i < rowEnd; i++) {
+            int offsetA = i * dimensions;
+            for (int j = Math.max(columnStart, i + 1); j < columnEnd; j++) {
+                int offsetB = j * dimensions;
+                double sum = 0;
+                for (int d = 0; d < dimensions; d++) {
+                    double diff = rows[offsetA + d] - rows[offsetB + d];
+                    sum += diff * diff;
+                }
+                sink.accept(i, j, Math.sqrt(sum));
+            }
+        }
+    }
+
+    /**
+     * Receives pair distances from one thread
+     */
+    public interface PairSink {
+        /**
+         * @param rowA The first row
+         * @param rowB The second row, after the first
+         * @param distance The distance
+         */
+        void accept(int rowA, int rowB, double distance);
+    }
+
+    /**
+     * Labels a pair of rows
+     */
+    public interface PairLabeler {
+        /**
+         * @param rowA The first row
+         * @param rowB The second row
+         * @return True if the rows are of the same subject
+         */
+        boolean sameSubject(int rowA, int rowB);
+    }
+
+    /**
+     * The inter (same subject) and intra (different subject) distances in growable primitive arrays
+     */
+    public static final class Buffers implements PairSink {
+        private final PairLabeler labeler;
+        private double[] inter = new double[64], intra = new double[1024];
+        private int interCount, intraCount;
+
+        private Buffers(PairLabeler labeler) {
+            this.labeler = labeler;
+        }
+
+        @Override
+        public void accept(int rowA, int rowB, double distance) {
+            if (labeler.sameSubject(rowA, rowB)) {
+                if (interCount == inter.length) {
+                    inter = Arrays.copyOf(inter, interCount * 2);
+                }
+                inter[interCount++] = distance;
+            } else {
+                if (intraCount == intra.length) {
+                    intra = Arrays.copyOf(intra, intraCount * 2);
+                }
+                intra[intraCount++] = distance;
+            }
+        }
+
+        private void merge(Buffers other) {
+            inter = Arrays.copyOf(inter, Math.max(inter.length, interCount + other.interCount));
+            System.arraycopy(other.inter, 0, inter, interCount, other.interCount);
+            interCount += other.interCount;
+            intra = Arrays.copyOf(intra, Math.max(intra.length, intraCount + other.intraCount));
+            System.arraycopy(other.intra, 0, intra, intraCount, other.intraCount);
+            intraCount += other.intraCount;
+        }
+
+        /**
+         * @return The distances between rows of the same subject, in no particular order
+         */
+        public double[] getInterDistances() {
+            return Arrays.copyOf(inter, interCount);
+        }
+
+        /**
+         * @return The distances between rows of different subjects, in no particular order
+         */
+        public double[] getIntraDistances() {
+            return Arrays.copyOf(intra, intraCount);
+        }
+    }
+
+    /**
+     * Fixed-width bin counts of the inter (same subject) and intra (different subject) distances
+     */
+    public static final class Histogram implements PairSink {
+        private final PairLabeler labeler;
+        private final double binWidth;
+        private final long[] interCounts, intraCounts;
+
+        private Histogram(PairLabeler labeler, double maxDistance, int bins) {
+            if (bins < 1 || !(maxDistance > 0)) {
+                throw new IllegalArgumentException("Expected at least one bin and a positive maxDistance");
+            }
+            this.labeler = labeler;
+            this.binWidth = maxDistance / bins;
+            this.interCounts = new long[bins];
+            this.intraCounts = new long[bins];
+        }
+
+        @Override
+        public void accept(int rowA, int rowB, double distance) {
+            int bin = Math.min(interCounts.length - 1, (int) (distance / binWidth));
+            if (labeler.sameSubject(rowA, rowB)) {
+                interCounts[bin]++;
+            } else {
+                intraCounts[bin]++;
+            }
+        }
+
+        private void merge(Histogram other) {
+            for (int bin = 0; bin < interCounts.length; bin++) {
+                interCounts[bin] += other.interCounts[bin];
+                intraCounts[bin] += other.intraCounts[bin];
+            }
+        }
+
+        /**
+         * The equal error rate with thresholds at the bin edges, as in VerificationMetrics FAR counts the inter
+         * distances above the threshold and FRR the intra distances below it
+         * @return The equal error rate (0 to 1), accurate to the bin width
+         */
+        public double getEER() {
+            long interTotal = Arrays.stream(interCounts).sum(), intraTotal = Arrays.stream(intraCounts).sum();
+            if (interTotal == 0 || intraTotal == 0) {
+                throw new IllegalStateException("Both distance sets must be non-empty");
+            }
+            long interAbove = interTotal, intraBelow = 0;
+            double bestFAR = 1, bestFRR = 0;
+            for (int edge = 0; edge <= interCounts.length; edge++) {
+                double FAR = interAbove / (double) interTotal, FRR = intraBelow / (double) intraTotal;
+                if (Math.abs(FAR - FRR) < Math.abs(bestFAR - bestFRR)) {
+                    bestFAR = FAR;
+                    bestFRR = FRR;
+                }
+                if (edge < interCounts.length) {
+                    interAbove -= interCounts[edge];
+                    intraBelow += intraCounts[edge];
+                }
+            }
+            return (bestFAR + bestFRR) / 2;
+        }
+
+        /**
+         * @return The inter (same subject) count per bin
+         */
+        public long[] getInterCounts() {
+            return interCounts.clone();
+        }
+
+        /**
+         * @return The intra (different subject) count per bin
+         */
+        public long[] getIntraCounts() {
+            return intraCounts.clone();
+        }
+
+        /**
+         * @return The bin width
+         */
+        public double getBinWidth() {
+            return binWidth;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+import java.util.Arrays;
+import java.util.List;
+
+public class BruteForceIndex implements GalleryIndex {
+    private int[] ids = new int[16];
+    private double[] vectors = new double[0];
+    private int size = 0, dimensions = 0;
+
+    @Override
+    public void build(int[] ids, double[] vectors, int dimensions) {
+        this.ids = Arrays.copyOf(ids, Math.max(ids.length, 16));
+        this.vectors = Arrays.copyOf(vectors, this.ids.length * dimensions);
+        this.size = ids.length;
+        this.dimensions = dimensions;
+    }
+
+    @Override
+    public void insert(int id, double[] vector) {
+        if (dimensions == 0) {
+            dimensions = vector.length;
+            vectors = new double[ids.length * dimensions];
+        }
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            vectors = Arrays.copyOf(vectors, ids.length * dimensions);
+        }
+        ids[size] = id;
+        System.arraycopy(vector, 0, vectors, size * dimensions, dimensions);
+        size++;
+    }
+
+    /**
+     * Always a linear scan, so always exact
+     */
+    @Override
+    public List<IdentificationEngine.Match> query(double[] probe, int k, boolean exact) {
+        TopK best = new TopK(Math.min(k, size));
+        for (int i = 0; i < size; i++) {
+            best.offer(ids[i], GalleryIndex.distance(vectors, i, dimensions, probe));
+        }
+        return best.toMatches();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
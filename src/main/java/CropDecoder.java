@@ -0,0 +1,190 @@
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+
+public class CropDecoder {
+    private final int subsampling;
+    private final ThreadLocal<BufferedImage> destinations = new ThreadLocal<>();
+
+    /**
+     * Decodes only the PersonFV crop of an image, the rest of the image is never converted to floats. With
+     * subsampling the decoder skips rows and columns, the crop is then smaller than PersonFV's
+     * @param subsampling Keeps every subsampling-th row and column, 1 for the full resolution crop
+     */
+    public CropDecoder(int subsampling) {
+        if (subsampling < 1) {
+            throw new IllegalArgumentException("subsampling must be at least 1");
+        }
+        this.subsampling = subsampling;
+    }
+
+    /**
+     * Decodes the crop of an image, the same pixels as PersonFV.crop of the whole decoded image when not subsampled.
+     * Outside the image is black
+     * @param content The encoded image
+     * @return The crop
+     */
+    public MBFImage decode(InputStream content) throws IOException {
+        return decode(content, new MBFImage(getCropWidth(), getCropHeight(), ColourSpace.RGB));
+    }
+
+    /**
+     * Decodes the crop of an image into an existing image, as by decode, every pixel is written
+     * @param content The encoded image
+     * @param crop The getCropWidth x getCropHeight image to fill, such as one borrowed from an ImageBufferPool
+     * @return The crop
+     */
+    public MBFImage decode(InputStream content, MBFImage crop) throws IOException {
+        if (crop.getWidth() != getCropWidth() || crop.getHeight() != getCropHeight()) {
+            throw new IllegalArgumentException("Expected a " + getCropWidth() + "x" + getCropHeight() + " crop");
+        }
+        try (ImageInputStream input = ImageIO.createImageInputStream(content)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("No reader for the image");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return decode(reader, crop);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Reads the crop's source region straight into a reused raster, then converts it to float bands
+     */
+    private MBFImage decode(ImageReader reader, MBFImage crop) throws IOException {
+        int imageWidth = reader.getWidth(0), imageHeight = reader.getHeight(0);
+        int width = getCropWidth(), height = getCropHeight();
+
+        // Same placement as extractCenter, clipped to the image
+        int x0 = (imageWidth / 2) + PersonFV.CROP_OFFSET_X - (PersonFV.CROP_WIDTH / 2);
+        int y0 = (imageHeight / 2) + PersonFV.CROP_OFFSET_Y - (PersonFV.CROP_HEIGHT / 2);
+        int left = Math.max(0, -x0), top = Math.max(0, -y0);
+        Rectangle region = new Rectangle(x0 + left, y0 + top,
+                Math.min(imageWidth, x0 + PersonFV.CROP_WIDTH) - (x0 + left), Math.min(imageHeight, y0 + PersonFV.CROP_HEIGHT) - (y0 + top));
+        if (region.width <= 0 || region.height <= 0) {
+            for (int band = 0; band < 3; band++) {
+                crop.getBand(band).fill(0f);
+            }
+            return crop;
+        }
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(region);
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+
+        // A clipped region leaves a border, the offset keeps the subsampled grid aligned with the crop
+        int offsetX = (left + subsampling - 1) / subsampling, offsetY = (top + subsampling - 1) / subsampling;
+        if (offsetX * subsampling != left || offsetY * subsampling != top) {
+            region.translate((offsetX * subsampling) - left, (offsetY * subsampling) - top);
+            region.setSize(region.width - ((offsetX * subsampling) - left), region.height - ((offsetY * subsampling) - top));
+            param.setSourceRegion(region);
+        }
+        boolean clipped = offsetX > 0 || offsetY > 0 || region.x + region.width < x0 + PersonFV.CROP_WIDTH || region.y + region.height < y0 + PersonFV.CROP_HEIGHT;
+
+        BufferedImage decoded;
+        if (supportsBGR(reader)) {
+            decoded = destination(width, height, clipped);
+            param.setDestination(decoded);
+            param.setDestinationOffset(new Point(offsetX, offsetY));
+            reader.read(0, param);
+        } else {
+            // Grey and other layouts are converted pixel by pixel through their colour model
+            BufferedImage converted = reader.read(0, param);
+            decoded = destination(width, height, true);
+            byte[] data = ((DataBufferByte) decoded.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < Math.min(converted.getHeight(), height - offsetY); y++) {
+                for (int x = 0; x < Math.min(converted.getWidth(), width - offsetX); x++) {
+                    int rgb = converted.getRGB(x, y), i = (((y + offsetY) * width) + x + offsetX) * 3;
+                    data[i] = (byte) rgb;
+                    data[i + 1] = (byte) (rgb >> 8);
+                    data[i + 2] = (byte) (rgb >> 16);
+                }
+            }
+        }
+
+        // Interleaved BGR bytes to RGB float bands, the same values as ImageUtilities
+        byte[] data = ((DataBufferByte) decoded.getRaster().getDataBuffer()).getData();
+        float[][] red = crop.getBand(0).pixels, green = crop.getBand(1).pixels, blue = crop.getBand(2).pixels;
+        for (int y = 0, i = 0; y < height; y++) {
+            float[] redRow = red[y], greenRow = green[y], blueRow = blue[y];
+            for (int x = 0; x < width; x++, i += 3) {
+                blueRow[x] = (data[i] & 0xff) / 255f;
+                greenRow[x] = (data[i + 1] & 0xff) / 255f;
+                redRow[x] = (data[i + 2] & 0xff) / 255f;
+            }
+        }
+        return crop;
+    }
+
+    /**
+     * Grey images are excluded, decoding them into BGR would copy the samples without the colour conversion getRGB
+     * and ImageUtilities apply
+     * @return True if the reader can decode straight into a BGR byte raster
+     */
+    private static boolean supportsBGR(ImageReader reader) throws IOException {
+        ImageTypeSpecifier raw = reader.getRawImageType(0);
+        if (raw == null || raw.getNumBands() != 3 || !raw.getColorModel().getColorSpace().isCS_sRGB()) {
+            return false;
+        }
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        while (types.hasNext()) {
+            if (types.next().getBufferedImageType() == BufferedImage.TYPE_3BYTE_BGR) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The calling thread's reused raster, cleared when the crop leaves a border
+     */
+    private BufferedImage destination(int width, int height, boolean clear) {
+        BufferedImage destination = destinations.get();
+        if (destination == null || destination.getWidth() != width || destination.getHeight() != height) {
+            destination = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+            destinations.set(destination);
+        } else if (clear) {
+            Arrays.fill(((DataBufferByte) destination.getRaster().getDataBuffer()).getData(), (byte) 0);
+        }
+        return destination;
+    }
+
+    /**
+     * @return The width of the decoded crops
+     */
+    public int getCropWidth() {
+        return (PersonFV.CROP_WIDTH + subsampling - 1) / subsampling;
+    }
+
+    /**
+     * @return The height of the decoded crops
+     */
+    public int getCropHeight() {
+        return (PersonFV.CROP_HEIGHT + subsampling - 1) / subsampling;
+    }
+
+    /**
+     * @return The subsampling as a feature store config entry, empty at full resolution
+     */
+    @Override
+    public String toString() {
+        return subsampling == 1 ? "" : ";subsampling=" + subsampling;
+    }
+}
@@ -0,0 +1,95 @@
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.MBFImage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class DebugImageWriter implements AutoCloseable {
+    private static final DebugImage POISON = new DebugImage(null, null);
+
+    private final String PATH;
+    private final BlockingQueue<DebugImage> queue;
+    private final Thread writer;
+    private volatile IOException failure;
+
+    /**
+     * Creates a background writer for the diagnostic images
+     * @param PATH The relative file path
+     * @param capacity The number of images that can be waiting before callers block
+     */
+    public DebugImageWriter(String PATH, int capacity) {
+        this.PATH = PATH;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.writer = new Thread(this::run, "debug-image-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues an image to be written, blocks while the queue is full
+     * @param folder The image folder (segmented, joints or temperature)
+     * @param isTraining Is the image in the training or testing set?
+     * @param id The FV id
+     * @param image The image, must not be modified afterwards
+     */
+    public void write(String folder, boolean isTraining, int id, MBFImage image) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        String resultPath = isTraining ? "training" : "testing";
+        try {
+            queue.put(new DebugImage(image, new File(PATH + folder + "\\" + resultPath + "\\" + id + ".jpg")));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing " + folder + " image " + id, e);
+        }
+    }
+
+    /**
+     * Writes queued images until the poison image is taken
+     */
+    private void run() {
+        while (true) {
+            DebugImage debugImage;
+            try {
+                debugImage = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (debugImage == POISON) {
+                return;
+            }
+
+            try {
+                ImageUtilities.write(debugImage.image(), debugImage.file());
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Waits for all queued images to be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            queue.put(POISON);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * A record to represent an image waiting to be written
+     * @param image
+     * @param file
+     */
+    private record DebugImage(MBFImage image, File file) { }
+}
@@ -0,0 +1,74 @@
+public class DistanceKernels {
+    /**
+     * True if the Vector API module is present (run with --add-modules jdk.incubator.vector) and not turned off
+     * with -DscalarKernels=true, otherwise the scalar loops are used
+     */
+    public static final boolean VECTOR_API = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+            && !Boolean.getBoolean("scalarKernels");
+
+    /**
+     * Squared Euclidean distance between a probe and a float32 row
+     * @param probe The probe
+     * @param rows The row-major rows
+     * @param offset The row's offset
+     * @param dimensions The row length
+     * @return The squared distance
+     */
+    public static float squaredDistance(float[] probe, float[] rows, int offset, int dimensions) {
+        if (VECTOR_API) {
+            return VectorKernels.squaredDistance(probe, rows, offset, dimensions);
+        }
+        return squaredDistanceScalar(probe, rows, offset, 0, dimensions);
+    }
+
+    /**
+     * Weighted squared Euclidean distance between a probe in code units and an int8 row, each dimension weighted by
+     * its squared quantization step
+     * @param probe The probe in code units
+     * @param weights The squared quantization step of each dimension
+     * @param rows The row-major codes
+     * @param offset The row's offset
+     * @param dimensions The row length
+     * @return The squared distance
+     */
+    public static float squaredDistance(float[] probe, float[] weights, byte[] rows, int offset, int dimensions) {
+        if (VECTOR_API) {
+            return VectorKernels.squaredDistance(probe, weights, rows, offset, dimensions);
+        }
+        return squaredDistanceScalar(probe, weights, rows, offset, 0, dimensions);
+    }
+
+    /**
+     * The scalar float32 kernel from a start dimension, also the vector kernel's tail
+     */
+    static float squaredDistanceScalar(float[] probe, float[] rows, int offset, int start, int dimensions) {
+        float sum = 0;
+        for (int d = start; d < dimensions; d++) {
+            float diff = probe[d] - rows[offset + d];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    /**
+     * The scalar int8 kernel from a start dimension, also the vector kernel's tail
+     */
+    static float squaredDistanceScalar(float[] probe, float[] weights, byte[] rows, int offset, int start, int dimensions) {
+        // Four independent sums so the additions do not wait on each other
+        float sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+        int d = start;
+        for (; d + 3 < dimensions; d += 4) {
+            float diff0 = probe[d] - rows[offset + d], diff1 = probe[d + 1] - rows[offset + d + 1];
+            float diff2 = probe[d + 2] - rows[offset + d + 2], diff3 = probe[d + 3] - rows[offset + d + 3];
+            sum0 += weights[d] * diff0 * diff0;
+            sum1 += weights[d + 1] * diff1 * diff1;
+            sum2 += weights[d + 2] * diff2 * diff2;
+            sum3 += weights[d + 3] * diff3 * diff3;
+        }
+        for (; d < dimensions; d++) {
+            float diff = probe[d] - rows[offset + d];
+            sum0 += weights[d] * diff * diff;
+        }
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+}
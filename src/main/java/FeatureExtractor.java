@@ -0,0 +1,324 @@
+import ai.djl.inference.Predictor;
+import ai.djl.modality.cv.Image;
+import ai.djl.modality.cv.output.Joints;
+import ai.djl.repository.zoo.ZooModel;
+import ai.djl.translate.TranslateException;
+import org.apache.commons.vfs2.FileObject;
+import org.openimaj.data.dataset.VFSListDataset;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.image.MBFImage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FeatureExtractor implements AutoCloseable {
+    private final ZooModel<Image, Joints> model;
+    private final int threads;
+    private final PoseBatcher batcher;
+    private final DebugImageWriter debugWriter;
+    private final PersonSegmenter segmenter;
+    private final FeatureStore store;
+    private final Float[][] temperatures;
+    private final PipelineMetrics metrics;
+    private final CropDecoder decoder;
+    private final int prefetch;
+    private final ImageBufferPool buffers;
+    private final ExecutorService workers, prefetcher;
+
+    /**
+     * Creates a bounded pool of workers that build feature vectors concurrently
+     * @param model The pose estimation model, each worker creates its own predictor from it
+     * @param threads The number of workers
+     * @param batcher The pose batcher shared by every worker, or null for a predictor per worker
+     * @param debugWriter The diagnostic image writer, or null to skip the diagnostic images
+     * @param segmenter The person segmenter
+     * @param store The feature store to reuse FVs from, or null to always extract
+     * @param temperatures The list of colours
+     * @param metrics The stage timings and counters
+     */
+    public FeatureExtractor(ZooModel<Image, Joints> model, int threads, PoseBatcher batcher, DebugImageWriter debugWriter, PersonSegmenter segmenter, FeatureStore store, Float[][] temperatures, PipelineMetrics metrics) {
+        this(model, threads, batcher, debugWriter, segmenter, store, temperatures, metrics, null, 0);
+    }
+
+    /**
+     * Creates a bounded pool of workers that build feature vectors concurrently, with only the crops decoded on a
+     * prefetch thread that runs ahead of the workers
+     * @param model The pose estimation model, each worker creates its own predictor from it
+     * @param threads The number of workers
+     * @param batcher The pose batcher shared by every worker, or null for a predictor per worker
+     * @param debugWriter The diagnostic image writer, or null to skip the diagnostic images
+     * @param segmenter The person segmenter
+     * @param store The feature store to reuse FVs from, or null to always extract
+     * @param temperatures The list of colours
+     * @param metrics The stage timings and counters
+     * @param decoder The crop decoder, or null to decode whole images in the workers
+     * @param prefetch The number of decoded crops waiting for a worker before the prefetch thread blocks
+     */
+    public FeatureExtractor(ZooModel<Image, Joints> model, int threads, PoseBatcher batcher, DebugImageWriter debugWriter, PersonSegmenter segmenter, FeatureStore store, Float[][] temperatures, PipelineMetrics metrics, CropDecoder decoder, int prefetch) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        if (decoder != null && prefetch < 1) {
+            throw new IllegalArgumentException("prefetch must be at least 1");
+        }
+        this.model = model;
+        this.threads = threads;
+        this.batcher = batcher;
+        this.debugWriter = debugWriter;
+        this.segmenter = segmenter;
+        this.store = store;
+        this.temperatures = temperatures;
+        this.metrics = metrics;
+        this.decoder = decoder;
+        this.prefetch = prefetch;
+        this.buffers = new ImageBufferPool(threads + prefetch + 1, metrics);
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.prefetcher = decoder == null ? null : Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Extracts a feature vector from every image, ids are assigned from 1 in list order.
+     * Images already in the feature store are not decoded
+     * @param images The images
+     * @param isTraining Is the image in the training or testing set?
+     * @return The feature vectors in id order
+     */
+    public List<PersonFV> extract(VFSListDataset<MBFImage> images, boolean isTraining) throws IOException, TranslateException {
+        // The CENTROIDS mode learns from the first image before the workers start, so no FV depends on their order
+        if (segmenter.needsCentroids() && images.size() > 0) {
+            segmenter.learnCentroids(PersonFV.crop(images.get(0)));
+        }
+        if (decoder != null) {
+            return extractPrefetched(images, isTraining);
+        }
+        PersonFV[] results = new PersonFV[images.size()];
+        AtomicInteger next = new AtomicInteger();
+        AtomicBoolean failed = new AtomicBoolean();
+
+        // Each worker owns a predictor as they are not thread-safe, unless they share the batcher
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < Math.min(threads, images.size()); i++) {
+            futures.add(workers.submit(() -> {
+                try (Predictor<Image, Joints> ownPredictor = batcher == null ? model.newPredictor() : null) {
+                    PoseEstimator predictor = batcher == null ? ownPredictor::predict : batcher;
+                    int index;
+                    while (!failed.get() && (index = next.getAndIncrement()) < results.length) {
+                        results[index] = extract(images, index, isTraining, predictor);
+                    }
+                } catch (Exception e) {
+                    metrics.increment("failedImages", 1);
+                    failed.set(true);
+                    throw e;
+                }
+                return null;
+            }));
+        }
+
+        awaitAll(futures);
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Extracts a feature vector from every image like extract, but the prefetch thread reads the images in order,
+     * resolves stored FVs and decodes only the crops of the rest, at most prefetch ahead of the workers
+     * @param images The images
+     * @param isTraining Is the image in the training or testing set?
+     * @return The feature vectors in id order
+     */
+    private List<PersonFV> extractPrefetched(VFSListDataset<MBFImage> images, boolean isTraining) throws IOException, TranslateException {
+        PersonFV[] results = new PersonFV[images.size()];
+        BlockingQueue<DecodedCrop> decoded = new ArrayBlockingQueue<>(prefetch);
+        AtomicBoolean failed = new AtomicBoolean(), decodingDone = new AtomicBoolean();
+
+        List<Future<?>> futures = new ArrayList<>();
+        futures.add(prefetcher.submit(() -> {
+            try {
+                for (int index = 0; index < results.length && !failed.get(); index++) {
+                    FileObject file = images.getFileObject(index);
+                    String key = null;
+                    if (store != null) {
+                        long startTime = System.nanoTime();
+                        try (InputStream content = file.getContent().getInputStream()) {
+                            key = FeatureStore.hash(content);
+                        }
+                        DoubleFV stored = store.get(key);
+                        metrics.record("storeLookup", startTime);
+                        if (stored != null) {
+                            metrics.increment("storeHits", 1);
+                            results[index] = new PersonFV(index + 1, stored);
+                            continue;
+                        }
+                        metrics.increment("storeMisses", 1);
+                    }
+
+                    // The crop goes back to the pool unless a worker takes it
+                    long startTime = System.nanoTime();
+                    MBFImage crop = buffers.borrowColour(decoder.getCropWidth(), decoder.getCropHeight());
+                    boolean queued = false;
+                    try {
+                        try (InputStream content = file.getContent().getInputStream()) {
+                            decoder.decode(content, crop);
+                        }
+                        metrics.record("decode", startTime);
+                        DecodedCrop item = new DecodedCrop(index, key, crop);
+                        while (!(queued = decoded.offer(item, 50, TimeUnit.MILLISECONDS))) {
+                            if (failed.get()) {
+                                return null;
+                            }
+                        }
+                    } finally {
+                        if (!queued) {
+                            buffers.release(crop);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                failed.set(true);
+                throw e;
+            } finally {
+                decodingDone.set(true);
+            }
+            return null;
+        }));
+
+        // Workers take crops until decoding is done and the queue is empty
+        for (int i = 0; i < Math.min(threads, images.size()); i++) {
+            futures.add(workers.submit(() -> {
+                try (Predictor<Image, Joints> ownPredictor = batcher == null ? model.newPredictor() : null) {
+                    PoseEstimator predictor = batcher == null ? ownPredictor::predict : batcher;
+                    while (!failed.get()) {
+                        DecodedCrop item = decoded.poll(50, TimeUnit.MILLISECONDS);
+                        if (item == null) {
+                            if (decodingDone.get() && decoded.isEmpty()) {
+                                break;
+                            }
+                            continue;
+                        }
+                        PersonFV personFV;
+                        try {
+                            personFV = new PersonFV(item.index() + 1, item.crop(), true, isTraining, debugWriter, segmenter, predictor, temperatures, metrics, buffers);
+                        } finally {
+                            buffers.release(item.crop());
+                        }
+                        if (item.key() != null) {
+                            long startTime = System.nanoTime();
+                            store.put(item.key(), personFV.getExtractedFeature());
+                            metrics.record("storeWrite", startTime);
+                        }
+                        results[item.index()] = personFV;
+                    }
+                } catch (Exception e) {
+                    metrics.increment("failedImages", 1);
+                    failed.set(true);
+                    throw e;
+                }
+                return null;
+            }));
+        }
+
+        // After a failure the crops still queued are returned to the pool, every task has stopped by then
+        try {
+            awaitAll(futures);
+        } finally {
+            DecodedCrop item;
+            while ((item = decoded.poll()) != null) {
+                buffers.release(item.crop());
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Waits for every task and rethrows the first failure
+     * @param futures The tasks
+     */
+    private static void awaitAll(List<Future<?>> futures) throws IOException, TranslateException {
+        Throwable failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Feature extraction interrupted", e);
+            } catch (ExecutionException e) {
+                failure = failure == null ? e.getCause() : failure;
+            }
+        }
+        if (failure instanceof IOException cause) {
+            throw cause;
+        } else if (failure instanceof TranslateException cause) {
+            throw cause;
+        } else if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+
+    /**
+     * Loads an image's FV from the feature store or extracts and stores it
+     * @param images The images
+     * @param index The image index
+     * @param isTraining Is the image in the training or testing set?
+     * @param predictor The worker's predictor
+     * @return The feature vector
+     */
+    private PersonFV extract(VFSListDataset<MBFImage> images, int index, boolean isTraining, PoseEstimator predictor) throws IOException, TranslateException {
+        if (store == null) {
+            return new PersonFV(index + 1, images.get(index), false, isTraining, debugWriter, segmenter, predictor, temperatures, metrics, buffers);
+        }
+
+        long startTime = System.nanoTime();
+        String key;
+        FileObject file = images.getFileObject(index);
+        try (InputStream content = file.getContent().getInputStream()) {
+            key = FeatureStore.hash(content);
+        }
+
+        DoubleFV stored = store.get(key);
+        metrics.record("storeLookup", startTime);
+        if (stored != null) {
+            metrics.increment("storeHits", 1);
+            return new PersonFV(index + 1, stored);
+        }
+        metrics.increment("storeMisses", 1);
+        PersonFV personFV = new PersonFV(index + 1, images.get(index), false, isTraining, debugWriter, segmenter, predictor, temperatures, metrics, buffers);
+        startTime = System.nanoTime();
+        store.put(key, personFV.getExtractedFeature());
+        metrics.record("storeWrite", startTime);
+        return personFV;
+    }
+
+    /**
+     * @return The number of workers
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    @Override
+    public void close() {
+        workers.shutdown();
+        if (prefetcher != null) {
+            prefetcher.shutdown();
+        }
+    }
+
+    /**
+     * A record to represent a crop decoded ahead of the workers
+     * @param index
+     * @param key
+     * @param crop
+     */
+    private record DecodedCrop(int index, String key, MBFImage crop) { }
+}
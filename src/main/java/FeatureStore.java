@@ -0,0 +1,200 @@
+import org.openimaj.feature.DoubleFV;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class FeatureStore implements AutoCloseable {
+    private static final int MAGIC = 0x50465653; // PFVS
+    private static final int VERSION = 1;
+    private static final int HASH_BYTES = 32;
+    private static final int HEADER_BYTES = 32; // padded so every FV is 8 byte aligned
+
+    // File locks are held per process, so stores of the same file in this process also share a monitor
+    private static final Map<Path, Object> FILE_MONITORS = new ConcurrentHashMap<>();
+
+    private final int dimensions, recordBytes;
+    private final long fingerprint;
+    private final FileChannel channel;
+    private final Object fileMonitor;
+    private final MappedByteBuffer mapped;
+    private final Map<String, Integer> mappedOffsets = new HashMap<>();
+    private final Map<String, double[]> added = new HashMap<>();
+    private long size;
+
+    /**
+     * Opens or creates the store for an extraction config. The file is a header followed by fixed size records of
+     * the image hash and the concatenated silhouette, joints and temperature FV, so it can be memory-mapped. The
+     * file is locked while it is opened and while each record is appended, so processes sharing it do not overwrite
+     * each other's records
+     * @param directory The store directory
+     * @param config The extraction config, a different config uses a different file
+     * @param dimensions The FV length
+     */
+    public FeatureStore(File directory, String config, int dimensions) throws IOException {
+        byte[] configHash = sha256(config.getBytes(StandardCharsets.UTF_8));
+        this.fingerprint = ByteBuffer.wrap(configHash).getLong();
+        this.dimensions = dimensions;
+        this.recordBytes = HASH_BYTES + (dimensions * Double.BYTES);
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        File file = new File(directory, "features-" + HexFormat.of().formatHex(configHash, 0, 8) + ".bin");
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.fileMonitor = FILE_MONITORS.computeIfAbsent(file.toPath().toAbsolutePath().normalize(), path -> new Object());
+
+        try {
+            synchronized (fileMonitor) {
+                try (FileLock lock = channel.lock()) {
+                    // Writes the header of a new store, otherwise checks it matches
+                    if (channel.size() < HEADER_BYTES) {
+                        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).putInt(dimensions).putLong(fingerprint);
+                        channel.truncate(0);
+                        channel.write(header.rewind(), 0);
+                    } else {
+                        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                        channel.read(header, 0);
+                        header.flip();
+                        if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != dimensions || header.getLong() != fingerprint) {
+                            throw new IOException(file + " is not a feature store for this config");
+                        }
+                    }
+
+                    // Drops a partially written last record, only a writer that died leaves one as appends hold the lock
+                    this.size = recordEnd(channel.size());
+                    channel.truncate(size);
+
+                    // Maps the existing records and indexes them by image hash
+                    this.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        byte[] hash = new byte[HASH_BYTES];
+        for (int offset = HEADER_BYTES; offset < size; offset += recordBytes) {
+            mapped.get(offset, hash);
+            mappedOffsets.put(HexFormat.of().formatHex(hash), offset + HASH_BYTES);
+        }
+    }
+
+    /**
+     * Hashes an image file's content
+     * @param content The image content, it is fully read but not closed
+     * @return The SHA-256 hash as hex
+     */
+    public static String hash(InputStream content) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = content.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @param key The image hash
+     * @return The stored FV, or null if the image has not been extracted with this config
+     */
+    public synchronized DoubleFV get(String key) {
+        double[] values = added.get(key);
+        if (values != null) {
+            return new DoubleFV(values.clone());
+        }
+
+        Integer offset = mappedOffsets.get(key);
+        if (offset == null) {
+            return null;
+        }
+        values = new double[dimensions];
+        mapped.asDoubleBuffer().get(offset / Double.BYTES, values);
+        return new DoubleFV(values);
+    }
+
+    /**
+     * Appends a FV to the store
+     * @param key The image hash
+     * @param feature The FV
+     */
+    public synchronized void put(String key, DoubleFV feature) throws IOException {
+        if (feature.values.length != dimensions) {
+            throw new IllegalArgumentException("Expected " + dimensions + " dimensions but got " + feature.values.length);
+        }
+        if (added.containsKey(key) || mappedOffsets.containsKey(key)) {
+            return;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(recordBytes);
+        record.put(HexFormat.of().parseHex(key));
+        for (double value : feature.values) {
+            record.putDouble(value);
+        }
+        record.flip();
+
+        // Appends after the records other stores of the file wrote since, over any partial record
+        synchronized (fileMonitor) {
+            try (FileLock lock = channel.lock()) {
+                size = recordEnd(channel.size());
+                while (record.hasRemaining()) {
+                    size += channel.write(record, size);
+                }
+            }
+        }
+        added.put(key, feature.values.clone());
+    }
+
+    /**
+     * @param fileSize The file size
+     * @return The end of the last complete record
+     */
+    private long recordEnd(long fileSize) {
+        return HEADER_BYTES + (((fileSize - HEADER_BYTES) / recordBytes) * recordBytes);
+    }
+
+    /**
+     * @return The number of stored FVs
+     */
+    public synchronized int size() {
+        return mappedOffsets.size() + added.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+
+    /**
+     * @return A SHA-256 digest
+     */
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The SHA-256 hash of the bytes
+     */
+    private static byte[] sha256(byte[] bytes) {
+        return sha256().digest(bytes);
+    }
+}
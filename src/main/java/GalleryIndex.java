@@ -0,0 +1,50 @@
+import java.util.List;
+
+public interface GalleryIndex {
+    /**
+     * Builds the index, replacing anything already in it
+     * @param ids The gallery ids
+     * @param vectors The projected gallery as a row-major matrix, one row per id
+     * @param dimensions The projected dimensions
+     */
+    void build(int[] ids, double[] vectors, int dimensions);
+
+    /**
+     * Adds a projected FV to the index
+     * @param id The gallery id
+     * @param vector The projected FV
+     */
+    void insert(int id, double[] vector);
+
+    /**
+     * Finds the k nearest projected FVs
+     * @param probe The projected probe
+     * @param k The number of matches
+     * @param exact True for the exact k nearest, false to allow approximate matches
+     * @return The matches nearest first
+     */
+    List<IdentificationEngine.Match> query(double[] probe, int k, boolean exact);
+
+    /**
+     * @return The number of indexed FVs
+     */
+    int size();
+
+    /**
+     * Euclidean distance from a probe to a matrix row
+     * @param vectors The row-major matrix
+     * @param row The row
+     * @param dimensions The row length
+     * @param probe The probe
+     * @return The distance
+     */
+    static double distance(double[] vectors, int row, int dimensions, double[] probe) {
+        int offset = row * dimensions;
+        double sum = 0;
+        for (int d = 0; d < dimensions; d++) {
+            double diff = vectors[offset + d] - probe[d];
+            sum += diff * diff;
+        }
+        return Math.sqrt(sum);
+    }
+}
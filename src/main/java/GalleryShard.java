@@ -0,0 +1,272 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class GalleryShard {
+    static final byte ADD = 1, QUERY = 2, COPY = 3, SIZE = 4, REMOVE = 5, ERRORS = 6;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final PipelineMetrics metrics;
+    private int[] ids = new int[16];
+    private double[] rows = new double[0];
+    private int size, dimensions;
+
+    /**
+     * Holds part of the projected gallery in memory and answers coordinator requests
+     * @param metrics Counts the connections that failed as connectionErrors
+     */
+    public GalleryShard(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Appends projected rows, growing the matrix when full
+     * @param newIds The gallery ids
+     * @param newRows The projected rows, row-major
+     * @param rowDimensions The projected dimensions
+     */
+    public void add(int[] newIds, double[] newRows, int rowDimensions) {
+        lock.writeLock().lock();
+        try {
+            if (size == 0) {
+                dimensions = rowDimensions;
+            } else if (rowDimensions != dimensions) {
+                throw new IllegalArgumentException("Expected " + dimensions + " dimensions, got " + rowDimensions);
+            }
+            if (size + newIds.length > ids.length) {
+                ids = Arrays.copyOf(ids, Math.max(ids.length * 2, size + newIds.length));
+            }
+            if ((size + newIds.length) * dimensions > rows.length) {
+                rows = Arrays.copyOf(rows, ids.length * dimensions);
+            }
+            System.arraycopy(newIds, 0, ids, size, newIds.length);
+            System.arraycopy(newRows, 0, rows, size * dimensions, newIds.length * dimensions);
+            size += newIds.length;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the k nearest rows of this shard
+     * @param probe The projected probe
+     * @param k The number of matches
+     * @return The local matches and the nearest and furthest distances
+     */
+    public IdentificationEngine.QueryResult query(double[] probe, int k) {
+        lock.readLock().lock();
+        try {
+            if (size > 0 && probe.length != dimensions) {
+                throw new IllegalArgumentException("Expected " + dimensions + " dimensions, got " + probe.length);
+            }
+            TopK best = new TopK(Math.min(k, size));
+            double furthestDistance = -1;
+            for (int i = 0; i < size; i++) {
+                double distance = GalleryIndex.distance(rows, i, dimensions, probe);
+                if (distance > furthestDistance) {
+                    furthestDistance = distance;
+                }
+                best.offer(ids[i], distance);
+            }
+            List<IdentificationEngine.Match> matches = best.toMatches();
+            return new IdentificationEngine.QueryResult(matches, matches.isEmpty() ? -1 : matches.get(0).distance(), furthestDistance);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies up to count rows from the end of the shard, so they can be added to another shard before they are removed
+     * @param count The number of rows
+     * @param out The copied ids and rows
+     */
+    private void copy(int count, DataOutputStream out) throws IOException {
+        lock.readLock().lock();
+        try {
+            int copied = Math.min(count, size);
+            out.writeInt(copied);
+            out.writeInt(dimensions);
+            for (int i = size - copied; i < size; i++) {
+                out.writeInt(ids[i]);
+                for (int d = 0; d < dimensions; d++) {
+                    out.writeDouble(rows[(i * dimensions) + d]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the rows copied from the end of the shard, once they are held by another shard. Gallery ids repeat, so
+     * the rows are matched by their position and the ids there must still be the copied ones
+     * @param copiedIds The ids of the copied rows, in order
+     * @throws IllegalArgumentException If the end of the shard no longer holds those rows
+     */
+    public void removeLast(int[] copiedIds) {
+        lock.writeLock().lock();
+        try {
+            int start = size - copiedIds.length;
+            if (start < 0 || !Arrays.equals(ids, start, size, copiedIds, 0, copiedIds.length)) {
+                throw new IllegalArgumentException("The last " + copiedIds.length + " rows changed since they were copied");
+            }
+            size = start;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return The number of rows
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Accepts coordinator connections until the socket is closed, each connection on its own thread
+     * @param serverSocket The bound socket
+     */
+    public void serve(ServerSocket serverSocket) throws IOException {
+        ExecutorService connections = Executors.newCachedThreadPool();
+        try {
+            while (!serverSocket.isClosed()) {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> {
+                    try (socket) {
+                        handle(socket);
+                    } catch (IOException e) {
+                        metrics.increment("connectionErrors", 1);
+                    }
+                });
+            }
+        } finally {
+            connections.shutdownNow();
+        }
+    }
+
+    /**
+     * Answers requests on one connection until the coordinator closes it. Every request is an opcode and its
+     * arguments, ADD ids and rows, QUERY a probe, COPY a row count, SIZE nothing, REMOVE the copied ids, ERRORS
+     * nothing. Every response starts with a status, 0 followed by the result or 1 followed by the error message
+     * @param socket The connection
+     */
+    private void handle(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        while (true) {
+            byte opcode;
+            try {
+                opcode = in.readByte();
+            } catch (EOFException e) {
+                return;
+            }
+
+            // Arguments are read in full before anything can fail, so the stream stays in step
+            switch (opcode) {
+                case ADD -> {
+                    int count = in.readInt(), rowDimensions = in.readInt();
+                    int[] newIds = new int[count];
+                    double[] newRows = new double[count * rowDimensions];
+                    for (int i = 0; i < count; i++) {
+                        newIds[i] = in.readInt();
+                        for (int d = 0; d < rowDimensions; d++) {
+                            newRows[(i * rowDimensions) + d] = in.readDouble();
+                        }
+                    }
+                    try {
+                        add(newIds, newRows, rowDimensions);
+                        out.writeByte(0);
+                        out.writeInt(size());
+                    } catch (IllegalArgumentException e) {
+                        writeError(out, e);
+                    }
+                }
+                case QUERY -> {
+                    int k = in.readInt();
+                    double[] probe = new double[in.readInt()];
+                    for (int d = 0; d < probe.length; d++) {
+                        probe[d] = in.readDouble();
+                    }
+                    try {
+                        IdentificationEngine.QueryResult result = query(probe, k);
+                        out.writeByte(0);
+                        out.writeInt(result.matches().size());
+                        for (IdentificationEngine.Match match : result.matches()) {
+                            out.writeInt(match.id());
+                            out.writeDouble(match.distance());
+                        }
+                        out.writeDouble(result.furthestDistance());
+                    } catch (IllegalArgumentException e) {
+                        writeError(out, e);
+                    }
+                }
+                case COPY -> {
+                    int count = in.readInt();
+                    out.writeByte(0);
+                    copy(count, out);
+                }
+                case SIZE -> {
+                    out.writeByte(0);
+                    out.writeInt(size());
+                }
+                case REMOVE -> {
+                    int[] copiedIds = new int[in.readInt()];
+                    for (int i = 0; i < copiedIds.length; i++) {
+                        copiedIds[i] = in.readInt();
+                    }
+                    try {
+                        removeLast(copiedIds);
+                        out.writeByte(0);
+                        out.writeInt(size());
+                    } catch (IllegalArgumentException e) {
+                        writeError(out, e);
+                    }
+                }
+                case ERRORS -> {
+                    out.writeByte(0);
+                    out.writeLong(metrics.getCount("connectionErrors"));
+                }
+                default -> throw new IOException("Unknown opcode " + opcode);
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Writes an error response
+     */
+    private static void writeError(DataOutputStream out, Exception e) throws IOException {
+        out.writeByte(1);
+        out.writeUTF(String.valueOf(e.getMessage()));
+    }
+
+    /**
+     * Serves a shard on the loopback interface on -Dport, by default any free port. The first line printed is the
+     * port so a coordinator that started the process can connect to it
+     */
+    public static void main(String[] args) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(Integer.getInteger("port", 0), 50, InetAddress.getLoopbackAddress())) {
+            System.out.println(serverSocket.getLocalPort());
+            System.out.flush();
+            new GalleryShard(new PipelineMetrics()).serve(serverSocket);
+        }
+    }
+}
@@ -0,0 +1,370 @@
+import org.openimaj.feature.FeatureVector;
+import org.openimaj.ml.pca.FeatureVectorPCA;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class IdentificationEngine {
+    private final FeatureVectorPCA pca;
+    private final QuantizedGallery.Precision precision;
+    private final IncrementalPCA incrementalPCA;
+    private final int migrationBatch;
+    private IncrementalPCA.Basis basis, previousBasis;
+    private int[] ids, rowVersions;
+    private double[] gallery, features;
+    private QuantizedGallery compactGallery;
+    private int size, dimensions, featureLength, migrationCursor;
+
+    /**
+     * Projects every gallery FV once into a contiguous row-major matrix.
+     * Not thread-safe, concurrent enrollment and queries must be guarded by the caller
+     * @param pca The learnt PCA basis
+     * @param galleryFVs The gallery FVs
+     */
+    public IdentificationEngine(FeatureVectorPCA pca, List<PersonFV> galleryFVs) {
+        this(pca, galleryFVs, QuantizedGallery.Precision.DOUBLE);
+    }
+
+    /**
+     * Projects every gallery FV once into a contiguous row-major matrix, stored as doubles or compacted to float32
+     * or int8 rows. Not thread-safe, concurrent enrollment and queries must be guarded by the caller
+     * @param pca The learnt PCA basis
+     * @param galleryFVs The gallery FVs
+     * @param precision The stored row precision
+     */
+    public IdentificationEngine(FeatureVectorPCA pca, List<PersonFV> galleryFVs, QuantizedGallery.Precision precision) {
+        this.pca = pca;
+        this.precision = precision;
+        this.incrementalPCA = null;
+        this.migrationBatch = 0;
+        this.size = galleryFVs.size();
+        this.ids = new int[Math.max(size, 16)];
+
+        double[][] projected = new double[size][];
+        for (int i = 0; i < size; i++) {
+            ids[i] = galleryFVs.get(i).getId();
+            projected[i] = project(galleryFVs.get(i).getExtractedFeature());
+        }
+        this.dimensions = size == 0 ? 0 : projected[0].length;
+
+        this.gallery = new double[ids.length * dimensions];
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(projected[i], 0, gallery, i * dimensions, dimensions);
+        }
+
+        // Only the compact rows are kept
+        if (precision != QuantizedGallery.Precision.DOUBLE && dimensions > 0) {
+            compactGallery = new QuantizedGallery(precision, gallery, size, dimensions);
+            gallery = null;
+        }
+    }
+
+    /**
+     * Projects every gallery FV with the latest basis of an incremental PCA, which enrollment keeps updating. The raw
+     * FVs are kept so rows can be moved to a newer basis version a batch at a time rather than all at once.
+     * Not thread-safe, concurrent enrollment and queries must be guarded by the caller
+     * @param incrementalPCA The learnt incremental PCA
+     * @param galleryFVs The gallery FVs
+     * @param migrationBatch The number of rows moved to the newer basis per enrollment
+     */
+    public IdentificationEngine(IncrementalPCA incrementalPCA, List<PersonFV> galleryFVs, int migrationBatch) {
+        this.pca = null;
+        this.precision = QuantizedGallery.Precision.DOUBLE;
+        this.incrementalPCA = incrementalPCA;
+        this.migrationBatch = Math.max(1, migrationBatch);
+        this.basis = incrementalPCA.getBasis();
+        this.size = galleryFVs.size();
+        this.ids = new int[Math.max(size, 16)];
+        this.rowVersions = new int[ids.length];
+        this.dimensions = basis.components().length;
+        this.featureLength = basis.mean().length;
+        this.gallery = new double[ids.length * dimensions];
+        this.features = new double[ids.length * featureLength];
+
+        for (int i = 0; i < size; i++) {
+            ids[i] = galleryFVs.get(i).getId();
+            setRow(i, galleryFVs.get(i).getExtractedFeature().asDoubleVector());
+        }
+    }
+
+    /**
+     * Projects a FV and appends it to the gallery, growing the matrix when full. With an incremental PCA the basis is
+     * updated first, and a newer basis version is only switched to once the previous migration has finished
+     * @param id The FV id
+     * @param feature The FV
+     */
+    public void enroll(int id, FeatureVector feature) {
+        if (incrementalPCA != null) {
+            incrementalPCA.update(feature);
+            if (previousBasis == null && incrementalPCA.getBasis().version() != basis.version()) {
+                previousBasis = basis;
+                basis = incrementalPCA.getBasis();
+                migrationCursor = 0;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                rowVersions = Arrays.copyOf(rowVersions, ids.length);
+                gallery = Arrays.copyOf(gallery, ids.length * dimensions);
+                features = Arrays.copyOf(features, ids.length * featureLength);
+            }
+            ids[size] = id;
+            setRow(size++, feature.asDoubleVector());
+            migrate(migrationBatch);
+            return;
+        }
+
+        double[] projected = project(feature);
+        if (dimensions == 0 && precision != QuantizedGallery.Precision.DOUBLE) {
+            dimensions = projected.length;
+            compactGallery = new QuantizedGallery(precision, new double[0], 0, dimensions);
+        }
+        if (compactGallery != null) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+            compactGallery.append(projected);
+            return;
+        }
+        if (dimensions == 0) {
+            dimensions = projected.length;
+            gallery = new double[ids.length * dimensions];
+        }
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            gallery = Arrays.copyOf(gallery, ids.length * dimensions);
+        }
+        ids[size] = id;
+        System.arraycopy(projected, 0, gallery, size * dimensions, dimensions);
+        size++;
+    }
+
+    /**
+     * Projects a FV into the PCA space
+     * @param feature The FV
+     * @return The projected vector
+     */
+    public double[] project(FeatureVector feature) {
+        if (incrementalPCA != null) {
+            return basis.project(feature.asDoubleVector());
+        }
+        return pca.project(feature).values;
+    }
+
+    /**
+     * Stores a raw FV and its projection with the current basis
+     * @param row The gallery row
+     * @param values The FV values
+     */
+    private void setRow(int row, double[] values) {
+        System.arraycopy(values, 0, features, row * featureLength, featureLength);
+        System.arraycopy(basis.project(values), 0, gallery, row * dimensions, dimensions);
+        rowVersions[row] = basis.version();
+    }
+
+    /**
+     * Re-projects up to limit rows still on the previous basis, the migration ends when every row has been visited
+     * @param limit The number of rows to re-project
+     */
+    private void migrate(int limit) {
+        double[] values = new double[featureLength];
+        while (previousBasis != null && limit > 0 && migrationCursor < size) {
+            if (rowVersions[migrationCursor] != basis.version()) {
+                System.arraycopy(features, migrationCursor * featureLength, values, 0, featureLength);
+                setRow(migrationCursor, values);
+                limit--;
+            }
+            migrationCursor++;
+        }
+        if (migrationCursor >= size) {
+            previousBasis = null;
+        }
+    }
+
+    /**
+     * Re-projects every row still on the previous basis
+     */
+    private void finishMigration() {
+        if (previousBasis != null) {
+            migrate(Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Euclidean distances from a projected probe to every gallery row
+     * @param probe The projected probe
+     * @param distances The output, one distance per gallery row
+     */
+    public void distances(double[] probe, double[] distances) {
+        finishMigration();
+        distances(probe, null, distances);
+    }
+
+    /**
+     * Euclidean distances to every gallery row, rows still on the previous basis use the probe projected with it
+     * @param probe The probe projected with the current basis
+     * @param previousProbe The probe projected with the previous basis, or null when nothing is migrating
+     * @param distances The output, one distance per gallery row
+     */
+    private void distances(double[] probe, double[] previousProbe, double[] distances) {
+        if (compactGallery != null) {
+            compactGallery.distances(probe, distances);
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            double[] rowProbe = previousProbe != null && rowVersions[i] != basis.version() ? previousProbe : probe;
+            int offset = i * dimensions;
+            double sum = 0;
+            for (int d = 0; d < dimensions; d++) {
+                double diff = gallery[offset + d] - rowProbe[d];
+                sum += diff * diff;
+            }
+            distances[i] = Math.sqrt(sum);
+        }
+    }
+
+    /**
+     * Finds the k nearest gallery FVs to a probe FV, the probe is projected once
+     * @param probe The probe FV
+     * @param k The number of matches
+     * @return The matches and the nearest and furthest distances
+     */
+    public QueryResult query(FeatureVector probe, int k) {
+        if (previousBasis != null) {
+            double[] values = probe.asDoubleVector();
+            return queryProjected(basis.project(values), previousBasis.project(values), k);
+        }
+        return queryProjected(project(probe), k);
+    }
+
+    /**
+     * Finds the k nearest gallery FVs to an already projected probe
+     * @param probe The projected probe
+     * @param k The number of matches
+     * @return The matches and the nearest and furthest distances
+     */
+    public QueryResult queryProjected(double[] probe, int k) {
+        finishMigration();
+        return queryProjected(probe, null, k);
+    }
+
+    /**
+     * Finds the k nearest gallery FVs, rows still on the previous basis use the probe projected with it
+     * @param probe The probe projected with the current basis
+     * @param previousProbe The probe projected with the previous basis, or null when nothing is migrating
+     * @param k The number of matches
+     * @return The matches and the nearest and furthest distances
+     */
+    private QueryResult queryProjected(double[] probe, double[] previousProbe, int k) {
+        double[] distances = new double[size];
+        distances(probe, previousProbe, distances);
+
+        // Sorted top-k, ties keep the earliest gallery FV
+        TopK best = new TopK(Math.min(k, size));
+        double furthestDistance = -1;
+
+        for (int i = 0; i < size; i++) {
+            double distance = distances[i];
+            if (distance > furthestDistance) {
+                furthestDistance = distance;
+            }
+            best.offer(ids[i], distance);
+        }
+
+        List<Match> matches = best.toMatches();
+        return new QueryResult(matches, matches.isEmpty() ? -1 : matches.get(0).distance(), furthestDistance);
+    }
+
+    /**
+     * Builds an index over the projected gallery
+     * @param index The empty index
+     * @return The index
+     */
+    public GalleryIndex buildIndex(GalleryIndex index) {
+        finishMigration();
+        double[] vectors = compactGallery != null ? decodeRows() : Arrays.copyOf(gallery, size * dimensions);
+        index.build(Arrays.copyOf(ids, size), vectors, dimensions);
+        return index;
+    }
+
+    /**
+     * The projected gallery, so callers need not project the gallery FVs again. Compact rows are decoded into a new
+     * matrix, otherwise it is the engine's own matrix and rows past size are spare capacity
+     * @return The projected rows, row-major, which must not be modified
+     */
+    public double[] getProjectedRows() {
+        finishMigration();
+        return compactGallery != null ? decodeRows() : gallery;
+    }
+
+    /**
+     * @return The compact rows decoded to doubles, row-major
+     */
+    private double[] decodeRows() {
+        double[] vectors = new double[size * dimensions];
+        double[] row = new double[dimensions];
+        for (int i = 0; i < size; i++) {
+            compactGallery.decode(i, row);
+            System.arraycopy(row, 0, vectors, i * dimensions, dimensions);
+        }
+        return vectors;
+    }
+
+    /**
+     * Runs a query for each probe FV
+     * @param probes The probe FVs
+     * @param k The number of matches per probe
+     * @return The results in probe order
+     */
+    public List<QueryResult> queryAll(List<PersonFV> probes, int k) {
+        List<QueryResult> results = new ArrayList<>(probes.size());
+        for (PersonFV probe : probes) {
+            results.add(query(probe.getExtractedFeature(), k));
+        }
+        return results;
+    }
+
+    /**
+     * @return The number of gallery FVs
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The projected dimensions
+     */
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * @return The basis version rows are migrating to, 0 without an incremental PCA
+     */
+    public int getBasisVersion() {
+        return basis == null ? 0 : basis.version();
+    }
+
+    /**
+     * A record to represent a gallery match
+     * @param id
+     * @param distance
+     */
+    public record Match(int id, double distance) { }
+
+    /**
+     * A record to represent the result of a query
+     * @param matches
+     * @param nearestDistance
+     * @param furthestDistance
+     */
+    public record QueryResult(List<Match> matches, double nearestDistance, double furthestDistance) {
+        /**
+         * @return The nearest match, or null if the gallery is empty
+         */
+        public Match nearest() {
+            return matches.isEmpty() ? null : matches.get(0);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+public class ImageBufferPool {
+    private final int capacity;
+    private final PipelineMetrics metrics;
+    private final Map<Long, BlockingQueue<MBFImage>> colourImages = new ConcurrentHashMap<>();
+    private final Map<Long, BlockingQueue<FImage>> greyImages = new ConcurrentHashMap<>();
+    private final Map<Long, BlockingQueue<BufferedImage>> displayImages = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a pool of working rasters shared by every thread, so the per-image crops, masks and labels reuse the
+     * rasters of earlier images. Rasters are pooled by size, in practice the crop size. Borrowed rasters hold the
+     * pixels of their last use, so they must be completely overwritten
+     * @param capacity The number of idle rasters kept per kind and size, the rest are left to the garbage collector
+     * @param metrics Counts the borrowed and newly allocated rasters, or null
+     */
+    public ImageBufferPool(int capacity, PipelineMetrics metrics) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param width The width
+     * @param height The height
+     * @return An RGB image with stale pixels
+     */
+    public MBFImage borrowColour(int width, int height) {
+        return borrow(colourImages, width, height, () -> new MBFImage(width, height, ColourSpace.RGB));
+    }
+
+    /**
+     * @param width The width
+     * @param height The height
+     * @return A grey image with stale pixels
+     */
+    public FImage borrowGrey(int width, int height) {
+        return borrow(greyImages, width, height, () -> new FImage(width, height));
+    }
+
+    /**
+     * @param width The width
+     * @param height The height
+     * @return A BGR byte image with stale pixels, the layout ImageUtilities.createBufferedImageForDisplay fills
+     */
+    public BufferedImage borrowDisplay(int width, int height) {
+        return borrow(displayImages, width, height, () -> new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR));
+    }
+
+    /**
+     * Returns an image to the pool, it must not be used afterwards
+     * @param image The image
+     */
+    public void release(MBFImage image) {
+        release(colourImages, image.getWidth(), image.getHeight(), image);
+    }
+
+    /**
+     * Returns an image to the pool, it must not be used afterwards
+     * @param image The image
+     */
+    public void release(FImage image) {
+        release(greyImages, image.getWidth(), image.getHeight(), image);
+    }
+
+    /**
+     * Returns an image to the pool, it must not be used afterwards
+     * @param image The image
+     */
+    public void release(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+            release(displayImages, image.getWidth(), image.getHeight(), image);
+        }
+    }
+
+    /**
+     * Takes an idle raster of the size or allocates one
+     */
+    private <T> T borrow(Map<Long, BlockingQueue<T>> pool, int width, int height, Supplier<T> allocate) {
+        T image = idle(pool, width, height).poll();
+        if (metrics != null) {
+            metrics.increment("rasterBorrows", 1);
+        }
+        if (image == null) {
+            image = allocate.get();
+            if (metrics != null) {
+                metrics.increment("rasterAllocations", 1);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Keeps the raster if there is room for its size
+     */
+    private <T> void release(Map<Long, BlockingQueue<T>> pool, int width, int height, T image) {
+        idle(pool, width, height).offer(image);
+    }
+
+    /**
+     * @return The idle rasters of the size
+     */
+    private <T> BlockingQueue<T> idle(Map<Long, BlockingQueue<T>> pool, int width, int height) {
+        long key = ((long) width << 32) | height;
+        BlockingQueue<T> idle = pool.get(key);
+        return idle != null ? idle : pool.computeIfAbsent(key, size -> new ArrayBlockingQueue<>(capacity));
+    }
+}
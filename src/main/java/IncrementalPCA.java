@@ -0,0 +1,352 @@
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+import org.openimaj.feature.FeatureVector;
+
+import java.util.List;
+import java.util.Random;
+
+public class IncrementalPCA {
+    private final int maxComponents;
+    private final double publishFraction;
+    private final int minPublishUpdates;
+    private int components, dimensions, updatesSincePublish;
+    private long count;
+    private double[] mean, singularValues;
+    private double[][] basis;
+    private Basis published;
+
+    /**
+     * A PCA basis that is updated one FV at a time, in time independent of how many FVs it has seen. Updates are
+     * published as a new basis version once they reach a fraction of the FVs seen, so a gallery projected with an
+     * older version only needs migrating occasionally. Not thread-safe
+     * @param maxComponents The number of components kept
+     * @param publishFraction Publishes once the updates reach this fraction of the FVs seen
+     * @param minPublishUpdates Publishes after at least this many updates
+     */
+    public IncrementalPCA(int maxComponents, double publishFraction, int minPublishUpdates) {
+        if (maxComponents < 1) {
+            throw new IllegalArgumentException("maxComponents must be at least 1");
+        }
+        this.maxComponents = maxComponents;
+        this.publishFraction = publishFraction;
+        this.minPublishUpdates = Math.max(1, minPublishUpdates);
+    }
+
+    /**
+     * Creates and learns an incremental PCA from -DpcaComponents (default every dimension),
+     * -DpcaDecomposition=exact|randomized, -DpcaOversampling=10, -DpcaPowerIterations=2, -DpcaPublishFraction=0.05
+     * and -DpcaPublishMin=8
+     * @param FVs The FVs
+     * @return The incremental PCA
+     */
+    public static IncrementalPCA fromProperties(List<? extends FeatureVector> FVs) {
+        IncrementalPCA pca = new IncrementalPCA(Integer.getInteger("pcaComponents", Integer.MAX_VALUE),
+                Double.parseDouble(System.getProperty("pcaPublishFraction", "0.05")), Integer.getInteger("pcaPublishMin", 8));
+        if (System.getProperty("pcaDecomposition", "exact").equalsIgnoreCase("randomized")) {
+            pca.learnRandomized(FVs, Integer.getInteger("pcaOversampling", 10), Integer.getInteger("pcaPowerIterations", 2), 42);
+        } else {
+            pca.learn(FVs);
+        }
+        return pca;
+    }
+
+    /**
+     * Learns the basis with an exact decomposition and publishes it
+     * @param FVs The FVs
+     */
+    public void learn(List<? extends FeatureVector> FVs) {
+        double[][] centred = centre(FVs);
+        setBasis(decompose(centred, components), FVs.size());
+    }
+
+    /**
+     * Learns the basis with a randomized truncated decomposition and publishes it. The FVs are projected onto a
+     * random subspace a little larger than the basis, refined with power iterations, and only that small projection
+     * is decomposed, so the cost grows linearly with the number of FVs
+     * @param FVs The FVs
+     * @param oversampling The extra random directions
+     * @param powerIterations The number of power iterations
+     * @param seed The random seed
+     */
+    public void learnRandomized(List<? extends FeatureVector> FVs, int oversampling, int powerIterations, long seed) {
+        double[][] centred = centre(FVs);
+        int rows = centred.length, sketchSize = Math.min(components + oversampling, Math.min(rows, dimensions));
+        Random random = new Random(seed);
+
+        // Sketch the range of the FVs with a random projection
+        double[][] omega = new double[dimensions][sketchSize];
+        for (double[] row : omega) {
+            for (int j = 0; j < sketchSize; j++) {
+                row[j] = random.nextGaussian();
+            }
+        }
+        double[][] sketch = orthonormaliseColumns(multiply(centred, omega));
+        for (int i = 0; i < powerIterations; i++) {
+            sketch = orthonormaliseColumns(multiply(centred, multiplyTransposed(centred, sketch)));
+        }
+
+        // Decompose the FVs projected onto the sketch
+        double[][] projected = transpose(multiplyTransposed(centred, sketch));
+        setBasis(decompose(projected, components), FVs.size());
+    }
+
+    /**
+     * Folds one FV into the mean and basis. The current basis scaled by its singular values and the mean correction
+     * row are decomposed together, which costs the same however many FVs have been seen
+     * @param feature The FV
+     */
+    public void update(FeatureVector feature) {
+        double[] values = feature.asDoubleVector();
+        if (mean == null) {
+            dimensions = values.length;
+            components = Math.min(maxComponents, dimensions);
+            mean = new double[dimensions];
+            singularValues = new double[components];
+            basis = new double[components][dimensions];
+        }
+
+        double[][] rows = new double[components + 1][];
+        for (int i = 0; i < components; i++) {
+            rows[i] = new double[dimensions];
+            for (int d = 0; d < dimensions; d++) {
+                rows[i][d] = singularValues[i] * basis[i][d];
+            }
+        }
+        double correction = Math.sqrt((double) count / (count + 1));
+        rows[components] = new double[dimensions];
+        for (int d = 0; d < dimensions; d++) {
+            rows[components][d] = correction * (values[d] - mean[d]);
+            mean[d] += (values[d] - mean[d]) / (count + 1);
+        }
+        count++;
+        basis = decompose(rows, components);
+
+        // Publish once enough has changed
+        updatesSincePublish++;
+        if (published == null || updatesSincePublish >= Math.max(minPublishUpdates, publishFraction * count)) {
+            publish();
+        }
+    }
+
+    /**
+     * @return The latest published basis
+     */
+    public Basis getBasis() {
+        return published;
+    }
+
+    /**
+     * @return The number of FVs seen
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Centres the FVs and sets the dimensions and the mean
+     * @return The centred FVs as rows
+     */
+    private double[][] centre(List<? extends FeatureVector> FVs) {
+        if (FVs.isEmpty()) {
+            throw new IllegalArgumentException("Expected at least one FV");
+        }
+        dimensions = FVs.get(0).length();
+        components = Math.min(maxComponents, dimensions);
+        mean = new double[dimensions];
+        double[][] rows = new double[FVs.size()][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = FVs.get(i).asDoubleVector().clone();
+            for (int d = 0; d < dimensions; d++) {
+                mean[d] += rows[i][d] / rows.length;
+            }
+        }
+        for (double[] row : rows) {
+            for (int d = 0; d < dimensions; d++) {
+                row[d] -= mean[d];
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Keeps a decomposition's basis and publishes it
+     */
+    private void setBasis(double[][] basis, long count) {
+        this.basis = basis;
+        this.count = count;
+        publish();
+    }
+
+    /**
+     * Publishes a copy of the mean and basis as the next version
+     */
+    private void publish() {
+        double[][] components = new double[basis.length][];
+        for (int i = 0; i < basis.length; i++) {
+            components[i] = basis[i].clone();
+        }
+        published = new Basis(published == null ? 1 : published.version() + 1, mean.clone(), components);
+        updatesSincePublish = 0;
+    }
+
+    /**
+     * Top right singular vectors of the rows, from the eigenvectors of whichever of the row Gram matrix or the
+     * column scatter matrix is smaller. Sets the singular values
+     * @param rows The rows
+     * @param components The number of components
+     * @return The components as orthonormal rows, zero where the rank runs out
+     */
+    private double[][] decompose(double[][] rows, int components) {
+        int rowCount = rows.length;
+        boolean gram = rowCount <= dimensions;
+        int size = gram ? rowCount : dimensions;
+
+        // Gram matrix rows x rows, or scatter matrix dimensions x dimensions
+        double[][] matrix = new double[size][size];
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j <= i; j++) {
+                double sum = 0;
+                if (gram) {
+                    for (int d = 0; d < dimensions; d++) {
+                        sum += rows[i][d] * rows[j][d];
+                    }
+                } else {
+                    for (double[] row : rows) {
+                        sum += row[i] * row[j];
+                    }
+                }
+                matrix[i][j] = sum;
+                matrix[j][i] = sum;
+            }
+        }
+
+        // Symmetric eigenvalues are in ascending order
+        EigenvalueDecomposition eigen = new EigenvalueDecomposition(new Matrix(matrix));
+        double[] eigenvalues = eigen.getRealEigenvalues();
+        double[][] vectors = eigen.getV().getArray();
+
+        double[][] result = new double[components][dimensions];
+        singularValues = new double[components];
+        for (int c = 0; c < Math.min(components, size); c++) {
+            int column = size - 1 - c;
+            double singularValue = Math.sqrt(Math.max(0, eigenvalues[column]));
+            if (singularValue <= 1e-12 * Math.sqrt(Math.max(1e-300, eigenvalues[size - 1]))) {
+                break;
+            }
+            singularValues[c] = singularValue;
+            if (gram) {
+                for (int j = 0; j < rowCount; j++) {
+                    double weight = vectors[j][column] / singularValue;
+                    for (int d = 0; d < dimensions; d++) {
+                        result[c][d] += weight * rows[j][d];
+                    }
+                }
+            } else {
+                for (int d = 0; d < dimensions; d++) {
+                    result[c][d] = vectors[d][column];
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return a x b
+     */
+    private static double[][] multiply(double[][] a, double[][] b) {
+        double[][] result = new double[a.length][b[0].length];
+        for (int i = 0; i < a.length; i++) {
+            for (int k = 0; k < b.length; k++) {
+                double value = a[i][k];
+                for (int j = 0; j < b[0].length; j++) {
+                    result[i][j] += value * b[k][j];
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The transpose of a, times b
+     */
+    private static double[][] multiplyTransposed(double[][] a, double[][] b) {
+        double[][] result = new double[a[0].length][b[0].length];
+        for (int k = 0; k < a.length; k++) {
+            for (int i = 0; i < a[0].length; i++) {
+                double value = a[k][i];
+                for (int j = 0; j < b[0].length; j++) {
+                    result[i][j] += value * b[k][j];
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The transpose
+     */
+    private static double[][] transpose(double[][] matrix) {
+        double[][] result = new double[matrix[0].length][matrix.length];
+        for (int i = 0; i < matrix.length; i++) {
+            for (int j = 0; j < matrix[0].length; j++) {
+                result[j][i] = matrix[i][j];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Modified Gram-Schmidt on the columns, twice for stability, in place
+     * @return The matrix
+     */
+    private static double[][] orthonormaliseColumns(double[][] matrix) {
+        int rows = matrix.length, columns = matrix[0].length;
+        for (int pass = 0; pass < 2; pass++) {
+            for (int j = 0; j < columns; j++) {
+                for (int previous = 0; previous < j; previous++) {
+                    double dot = 0;
+                    for (double[] row : matrix) {
+                        dot += row[j] * row[previous];
+                    }
+                    for (double[] row : matrix) {
+                        row[j] -= dot * row[previous];
+                    }
+                }
+                double norm = 0;
+                for (double[] row : matrix) {
+                    norm += row[j] * row[j];
+                }
+                norm = Math.sqrt(norm);
+                for (int i = 0; i < rows; i++) {
+                    matrix[i][j] = norm > 0 ? matrix[i][j] / norm : 0;
+                }
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * A record to represent a published basis, never modified once published
+     * @param version
+     * @param mean
+     * @param components
+     */
+    public record Basis(int version, double[] mean, double[][] components) {
+        /**
+         * Centres and projects a FV onto the components
+         * @param values The FV values
+         * @return The projected vector
+         */
+        public double[] project(double[] values) {
+            double[] projected = new double[components.length];
+            for (int c = 0; c < components.length; c++) {
+                double sum = 0;
+                for (int d = 0; d < mean.length; d++) {
+                    sum += (values[d] - mean[d]) * components[c][d];
+                }
+                projected[c] = sum;
+            }
+            return projected;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class IndexReport {
+    /**
+     * Measures recall and query latency of each index against the brute force baseline on a synthetic gallery of
+     * subjects with several noisy FVs each. Like a PCA projection the variance falls off with each dimension.
+     * Set the gallery with -Dsize, -Ddimensions, -Dqueries and -Dk
+     */
+    public static void main(String[] args) throws IOException {
+        int size = Integer.getInteger("size", 100000);
+        int dimensions = Integer.getInteger("dimensions", 64);
+        int queries = Integer.getInteger("queries", 200);
+        int k = Integer.getInteger("k", 5);
+        Random random = new Random(42);
+
+        // Subjects are random centres, their FVs and the probes are noisy copies
+        int samplesPerSubject = 4;
+        double[] deviations = new double[dimensions];
+        for (int d = 0; d < dimensions; d++) {
+            deviations[d] = 1 / Math.sqrt(d + 1);
+        }
+        double[] centres = new double[((size / samplesPerSubject) + 1) * dimensions];
+        for (int i = 0; i < centres.length; i++) {
+            centres[i] = random.nextGaussian() * deviations[i % dimensions];
+        }
+        int[] ids = new int[size];
+        double[] vectors = new double[size * dimensions];
+        for (int i = 0; i < size; i++) {
+            ids[i] = i + 1;
+            int centre = (i / samplesPerSubject) * dimensions;
+            for (int d = 0; d < dimensions; d++) {
+                vectors[(i * dimensions) + d] = centres[centre + d] + (random.nextGaussian() * 0.2 * deviations[d]);
+            }
+        }
+        double[][] probes = new double[queries][dimensions];
+        for (double[] probe : probes) {
+            int centre = random.nextInt(size / samplesPerSubject) * dimensions;
+            for (int d = 0; d < dimensions; d++) {
+                probe[d] = centres[centre + d] + (random.nextGaussian() * 0.2 * deviations[d]);
+            }
+        }
+
+        // Brute force ground truth
+        GalleryIndex baseline = new BruteForceIndex();
+        baseline.build(ids, vectors, dimensions);
+        List<List<IdentificationEngine.Match>> truth = new ArrayList<>();
+        for (double[] probe : probes) {
+            truth.add(baseline.query(probe, k, true));
+        }
+
+        StringBuilder report = new StringBuilder("Gallery: " + size + " FVs, " + dimensions + " dimensions, "
+                + queries + " queries, k = " + k + "\n");
+        report.append(String.format("%-28s %10s %12s %12s %8s%n", "Index", "Build (ms)", "Mean (us)", "p99 (us)", "Recall"));
+        measure(report, "Brute force", new BruteForceIndex(), true, ids, vectors, dimensions, probes, truth, k);
+        measure(report, "VP tree exact", new VantagePointTree(0, 1), true, ids, vectors, dimensions, probes, truth, k);
+        measure(report, "VP tree eps=0.5", new VantagePointTree(0.5, 1), false, ids, vectors, dimensions, probes, truth, k);
+        measure(report, "VP tree eps=1", new VantagePointTree(1, 1), false, ids, vectors, dimensions, probes, truth, k);
+        measure(report, "LSH 16x4 w=0.5", new LSHIndex(16, 4, 0.5, 1), false, ids, vectors, dimensions, probes, truth, k);
+        measure(report, "LSH 16x4 w=1", new LSHIndex(16, 4, 1, 1), false, ids, vectors, dimensions, probes, truth, k);
+        measure(report, "LSH 32x4 w=1", new LSHIndex(32, 4, 1, 1), false, ids, vectors, dimensions, probes, truth, k);
+        measure(report, "LSH 32x8 w=1", new LSHIndex(32, 8, 1, 1), false, ids, vectors, dimensions, probes, truth, k);
+
+        File reportFile = new File(Main.PATH + "index-report.txt");
+        FileWriter fileWriter = new FileWriter(reportFile);
+        fileWriter.write(report.toString());
+        fileWriter.close();
+
+        System.out.print(report);
+    }
+
+    /**
+     * Builds an index, runs every probe and appends its build time, latencies and recall to the report
+     */
+    private static void measure(StringBuilder report, String name, GalleryIndex index, boolean exact, int[] ids, double[] vectors, int dimensions,
+                                double[][] probes, List<List<IdentificationEngine.Match>> truth, int k) {
+        long buildStart = System.nanoTime();
+        index.build(ids, vectors, dimensions);
+        long buildTime = System.nanoTime() - buildStart;
+
+        // Warm up before timing
+        for (double[] probe : probes) {
+            index.query(probe, k, exact);
+        }
+
+        long[] latencies = new long[probes.length];
+        int found = 0, expected = 0;
+        for (int i = 0; i < probes.length; i++) {
+            long queryStart = System.nanoTime();
+            List<IdentificationEngine.Match> matches = index.query(probes[i], k, exact);
+            latencies[i] = System.nanoTime() - queryStart;
+
+            // Recall is the fraction of the true k nearest that were returned
+            Set<Integer> returned = new HashSet<>();
+            for (IdentificationEngine.Match match : matches) {
+                returned.add(match.id());
+            }
+            for (IdentificationEngine.Match match : truth.get(i)) {
+                if (returned.contains(match.id())) {
+                    found++;
+                }
+                expected++;
+            }
+        }
+
+        Arrays.sort(latencies);
+        double mean = Arrays.stream(latencies).average().orElse(0) / 1e3;
+        double p99 = latencies[Math.max(0, (int) Math.ceil(0.99 * latencies.length) - 1)] / 1e3;
+        report.append(String.format("%-28s %10.1f %12.1f %12.1f %8.3f%n", name + (exact ? "" : " (approx)"), buildTime / 1e6, mean, p99, found / (double) expected));
+    }
+}
@@ -0,0 +1,183 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+public class LSHIndex implements GalleryIndex {
+    private final int tables, hashes;
+    private final double widthFactor;
+    private final Random random;
+    private int[] ids = new int[16];
+    private double[] vectors = new double[0];
+    private int size = 0, indexedSize = 0, dimensions = 0;
+    private double width;
+    private double[][] projections;
+    private double[] offsets;
+    private long[][] bucketKeys;
+    private int[][] bucketItems;
+
+    /**
+     * Creates a p-stable locality-sensitive hashing index. Approximate queries only measure the FVs that share a
+     * bucket with the probe in at least one table
+     * @param tables The number of hash tables, more tables raise recall
+     * @param hashes The number of hashes per table, more hashes make buckets smaller
+     * @param widthFactor The bucket width as a fraction of the mean distance between gallery FVs
+     * @param seed The seed for the random projections
+     */
+    public LSHIndex(int tables, int hashes, double widthFactor, long seed) {
+        this.tables = tables;
+        this.hashes = hashes;
+        this.widthFactor = widthFactor;
+        this.random = new Random(seed);
+    }
+
+    @Override
+    public void build(int[] ids, double[] vectors, int dimensions) {
+        this.ids = Arrays.copyOf(ids, Math.max(ids.length, 16));
+        this.vectors = Arrays.copyOf(vectors, this.ids.length * dimensions);
+        this.size = ids.length;
+        this.dimensions = dimensions;
+        rebuild();
+    }
+
+    /**
+     * Inserted FVs are scanned linearly until there are enough of them to rehash
+     */
+    @Override
+    public void insert(int id, double[] vector) {
+        if (dimensions == 0) {
+            dimensions = vector.length;
+            vectors = new double[ids.length * dimensions];
+        }
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            vectors = Arrays.copyOf(vectors, ids.length * dimensions);
+        }
+        ids[size] = id;
+        System.arraycopy(vector, 0, vectors, size * dimensions, dimensions);
+        size++;
+
+        if (size - indexedSize > Math.max(32, indexedSize / 8)) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Exact queries fall back to a linear scan
+     */
+    @Override
+    public List<IdentificationEngine.Match> query(double[] probe, int k, boolean exact) {
+        TopK best = new TopK(Math.min(k, size));
+        if (exact || projections == null) {
+            for (int i = 0; i < size; i++) {
+                best.offer(ids[i], GalleryIndex.distance(vectors, i, dimensions, probe));
+            }
+            return best.toMatches();
+        }
+
+        // Measure each FV sharing a bucket with the probe once
+        BitSet seen = new BitSet(indexedSize);
+        for (int table = 0; table < tables; table++) {
+            long key = hash(table, probe, 0);
+            long[] keys = bucketKeys[table];
+            int[] items = bucketItems[table];
+            for (int i = lowerBound(keys, key); i < keys.length && keys[i] == key; i++) {
+                int item = items[i];
+                if (!seen.get(item)) {
+                    seen.set(item);
+                    best.offer(ids[item], GalleryIndex.distance(vectors, item, dimensions, probe));
+                }
+            }
+        }
+
+        // FVs inserted since the last rehash
+        for (int i = indexedSize; i < size; i++) {
+            best.offer(ids[i], GalleryIndex.distance(vectors, i, dimensions, probe));
+        }
+        return best.toMatches();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Draws new projections and rehashes every FV into tables sorted by bucket key
+     */
+    private void rebuild() {
+        if (size == 0) {
+            return;
+        }
+
+        // Bucket width from a sample of pairwise distances
+        double sum = 0;
+        int samples = 1000;
+        for (int i = 0; i < samples; i++) {
+            int a = random.nextInt(size) * dimensions, b = random.nextInt(size) * dimensions;
+            double squared = 0;
+            for (int d = 0; d < dimensions; d++) {
+                double diff = vectors[a + d] - vectors[b + d];
+                squared += diff * diff;
+            }
+            sum += Math.sqrt(squared);
+        }
+        width = Math.max((sum / samples) * widthFactor, Double.MIN_NORMAL);
+
+        projections = new double[tables * hashes][dimensions];
+        offsets = new double[tables * hashes];
+        for (int i = 0; i < projections.length; i++) {
+            for (int d = 0; d < dimensions; d++) {
+                projections[i][d] = random.nextGaussian();
+            }
+            offsets[i] = random.nextDouble() * width;
+        }
+
+        bucketKeys = new long[tables][];
+        bucketItems = new int[tables][];
+        for (int table = 0; table < tables; table++) {
+            long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = hash(table, vectors, i * dimensions);
+            }
+            int[] items = IntStream.range(0, size).boxed().sorted(Comparator.comparingLong(i -> keys[i])).mapToInt(Integer::intValue).toArray();
+            long[] sortedKeys = new long[size];
+            for (int i = 0; i < size; i++) {
+                sortedKeys[i] = keys[items[i]];
+            }
+            bucketKeys[table] = sortedKeys;
+            bucketItems[table] = items;
+        }
+        indexedSize = size;
+    }
+
+    /**
+     * Combines the table's quantised projections of a vector into one bucket key
+     */
+    private long hash(int table, double[] vector, int offset) {
+        long key = table;
+        for (int h = table * hashes; h < (table + 1) * hashes; h++) {
+            double dot = 0;
+            for (int d = 0; d < dimensions; d++) {
+                dot += projections[h][d] * vector[offset + d];
+            }
+            key = (key * 0x9E3779B97F4A7C15L) + (long) Math.floor((dot + offsets[h]) / width);
+        }
+        return key;
+    }
+
+    private static int lowerBound(long[] sorted, long value) {
+        int low = 0, high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,76 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+    static final long BASE_NANOS = 10_000; // the first bucket holds up to 10us
+    static final int BUCKETS = 25; // doubling upper bounds up to ~84s, then +Inf
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder(), sumNanos = new LongAdder();
+
+    /**
+     * Records a latency into a fixed bucket, lock-free so it can be left on in every worker
+     * @param nanos The latency in nanoseconds
+     */
+    public void record(long nanos) {
+        int bucket = nanos <= BASE_NANOS ? 0 : 64 - Long.numberOfLeadingZeros((nanos - 1) / BASE_NANOS);
+        buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        count.increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * @param bucket The bucket
+     * @return The bucket's upper bound in nanoseconds, or infinity for the last bucket
+     */
+    public static double upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Double.POSITIVE_INFINITY : (double) BASE_NANOS * (1L << bucket);
+    }
+
+    /**
+     * @param bucket The bucket
+     * @return The number of latencies in the bucket
+     */
+    public long getBucketCount(int bucket) {
+        return buckets.get(bucket);
+    }
+
+    /**
+     * @return The number of latencies recorded
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return The sum of the latencies in nanoseconds
+     */
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    /**
+     * Percentile estimated as the upper bound of the bucket holding its rank
+     * @param percentile The percentile (0 to 100)
+     * @return The latency in milliseconds, infinite in the last bucket, or 0 if nothing has been recorded
+     */
+    public double percentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil((percentile / 100) * total)), seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i) / 1e6;
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+}
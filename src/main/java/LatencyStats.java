@@ -0,0 +1,58 @@
+import java.util.Arrays;
+
+public class LatencyStats {
+    private final long[] samples;
+    private long count = 0;
+
+    /**
+     * Keeps the most recent request latencies for percentile reporting
+     * @param capacity The number of recent samples kept
+     */
+    public LatencyStats(int capacity) {
+        this.samples = new long[capacity];
+    }
+
+    /**
+     * @param nanos The request latency in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        samples[(int) (count % samples.length)] = nanos;
+        count++;
+    }
+
+    /**
+     * Nearest-rank percentile over the recent samples
+     * @param percentile The percentile (0 to 100)
+     * @return The latency in milliseconds, or 0 if nothing has been recorded
+     */
+    public double percentile(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(samples, (int) Math.min(count, samples.length));
+        }
+        if (sorted.length == 0) {
+            return 0;
+        }
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil((percentile / 100) * sorted.length);
+        return sorted[Math.max(0, Math.min(rank, sorted.length) - 1)] / 1e6;
+    }
+
+    /**
+     * @return The number of requests recorded
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The count and p50, p90, p99 and max latencies as JSON
+     */
+    public String toJson() {
+        return "{\"count\": " + getCount()
+                + ", \"p50Ms\": " + percentile(50)
+                + ", \"p90Ms\": " + percentile(90)
+                + ", \"p99Ms\": " + percentile(99)
+                + ", \"maxMs\": " + percentile(100) + "}";
+    }
+}
@@ -1,11 +1,12 @@
 import ai.djl.Application;
-import ai.djl.inference.Predictor;
+import ai.djl.MalformedModelException;
 import ai.djl.modality.cv.Image;
 import ai.djl.modality.cv.output.Joints;
 import ai.djl.repository.zoo.Criteria;
+import ai.djl.repository.zoo.ModelNotFoundException;
+import ai.djl.repository.zoo.ZooModel;
 import ai.djl.translate.TranslateException;
 import org.openimaj.data.dataset.VFSListDataset;
-import org.openimaj.feature.DoubleFVComparison;
 import org.openimaj.feature.FeatureVector;
 import org.openimaj.image.ImageUtilities;
 import org.openimaj.image.MBFImage;
@@ -17,61 +18,58 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class Main {
-    private static final String PATH = Paths.get("").toAbsolutePath() + "\\src\\main\\java\\";
-    private static Predictor<Image, Joints> predictor;
+    static final String PATH = Paths.get("").toAbsolutePath() + "\\src\\main\\java\\";
+    private static final boolean DEBUG_IMAGES = Boolean.getBoolean("debugImages");
+    private static final boolean FEATURE_CACHE = Boolean.parseBoolean(System.getProperty("featureCache", "true"));
+    private static final int THREADS = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
+    private static final int POSE_BATCH = Integer.getInteger("poseBatch", 1);
+    private static final long POSE_BATCH_WAIT = Long.getLong("poseBatchWaitMs", 5);
+    private static final boolean ROI_DECODE = Boolean.parseBoolean(System.getProperty("roiDecode", "true"));
+    private static final int DECODE_SUBSAMPLING = Integer.getInteger("decodeSubsampling", 1);
+    private static final int PREFETCH = Integer.getInteger("prefetch", THREADS * 2);
+    private static ZooModel<Image, Joints> model;
     private static final Float[][] temperatures = new Float[48][];
+    private static final PipelineMetrics metrics = new PipelineMetrics();
 
     /**
      * Runs the classification and prints the results
      */
-    public static void main(String[] args) throws IOException, TranslateException {
+    public static void main(String[] args) throws IOException, TranslateException, InterruptedException {
         AtomicReference<VFSListDataset<MBFImage>> training = new AtomicReference<>(new VFSListDataset<>(PATH + "biometrics\\training", ImageUtilities.MBFIMAGE_READER));
         AtomicReference<VFSListDataset<MBFImage>> testing = new AtomicReference<>(new VFSListDataset<>(PATH + "biometrics\\testing", ImageUtilities.MBFIMAGE_READER));
 
-        ArrayList<PersonFV> trainingFVs = new ArrayList<>();
-        ArrayList<PersonFV> testingFVs = new ArrayList<>();
         ArrayList<FeatureVector> FVs = new ArrayList<>();
 
         long startTime = System.currentTimeMillis();
 
         // Pose estimation using DJL
         try {
-            predictor = Criteria.builder()
-                    .optApplication(Application.CV.POSE_ESTIMATION)
-                    .setTypes(Image.class, Joints.class)
-                    .optFilter("backbone", "resnet18")
-                    .optFilter("flavor", "v1b")
-                    .optFilter("dataset", "imagenet")
-                    .optEngine("MXNet")
-                    .build()
-                    .loadModel()
-                    .newPredictor();
+            model = loadModel();
         } catch (Exception e) {
             e.printStackTrace();
         }
 
         // Colour generation
-        for (int i = 0; i < temperatures.length; i++) {
-            temperatures[i] = RGBColour.randomColour();
-        }
-
-        // Read and print the training images
-        int id = 1;
-        for (MBFImage trainingImage : training.get()) {
-            trainingFVs.add(new PersonFV(id, trainingImage, true, PATH, predictor, temperatures));
-            id++;
-        }
-
-        // Read and print the testing images
-        id = 1;
-        for (MBFImage testingImage : testing.get()) {
-            testingFVs.add(new PersonFV(id, testingImage, false, PATH, predictor, temperatures));
-            id++;
+        generateTemperatures(temperatures);
+
+        // Read and print the training and testing images, one predictor per worker and stored FVs reused, only the crops
+        // are decoded ahead of the workers
+        List<PersonFV> trainingFVs, testingFVs;
+        PersonSegmenter segmenter = PersonSegmenter.fromProperties();
+        CropDecoder decoder = ROI_DECODE ? new CropDecoder(DECODE_SUBSAMPLING) : null;
+        long phaseStart = System.nanoTime();
+        try (PoseBatcher batcher = POSE_BATCH > 1 ? new PoseBatcher(model, POSE_BATCH, POSE_BATCH_WAIT) : null;
+             DebugImageWriter debugWriter = DEBUG_IMAGES ? new DebugImageWriter(PATH, 16) : null;
+             FeatureStore store = FEATURE_CACHE ? new FeatureStore(new File(PATH + "features"), PersonFV.CONFIG + ";" + segmenter + (decoder == null ? "" : decoder), PersonFV.FEATURE_LENGTH) : null;
+             FeatureExtractor extractor = new FeatureExtractor(model, THREADS, batcher, debugWriter, segmenter, store, temperatures, metrics, decoder, PREFETCH)) {
+            trainingFVs = extractor.extract(training.get(), true);
+            testingFVs = extractor.extract(testing.get(), false);
         }
+        phaseStart = metrics.record("featureExtractionPhase", phaseStart);
 
         // Learning PCA basis
         for (PersonFV trainingFV : trainingFVs) {
@@ -79,78 +77,38 @@ public class Main {
         }
         FeatureVectorPCA pca = new FeatureVectorPCA();
         pca.learnBasis(FVs);
+        phaseStart = metrics.record("pcaLearning", phaseStart);
 
         // Nearest neighbour to find the closest training FV to each testing FV
         float correctCount = 0f;
 
+        IdentificationEngine engine = new IdentificationEngine(pca, trainingFVs, QuantizedGallery.Precision.fromProperties());
+
         for (PersonFV testingFV : testingFVs) {
-            PersonFV nearestFV = null;
-            double nearestDistance = -1, furthestDistance = -1;
-
-            // Finds the nearest FV
-            for (PersonFV trainingFV : trainingFVs) {
-                double distance = DoubleFVComparison.EUCLIDEAN.compare(pca.project(trainingFV.getExtractedFeature()), pca.project(testingFV.getExtractedFeature()));
-
-                // Checks if it's the nearest or furthest distance
-                if (nearestDistance == -1 || distance < nearestDistance) {
-                    nearestDistance = distance;
-                    nearestFV = trainingFV;
-                }
-                if (furthestDistance == -1 || distance > furthestDistance) {
-                    furthestDistance = distance;
-                }
-            }
+            long matchingStart = System.nanoTime();
+            IdentificationEngine.Match nearest = engine.query(testingFV.getExtractedFeature(), 1).nearest();
+            metrics.record("matching", matchingStart);
 
             // Checks classification accuracy
-            if (nearestFV != null && classificationCheck(testingFV.getId(), nearestFV.getId())) {
+            if (nearest != null && classificationCheck(testingFV.getId(), nearest.id())) {
                 correctCount += 1f;
             }
         }
 
-        // Histogram of distances calculations
-        double correctClassificationRate = (correctCount / 22f) * 100f;
-        ArrayList<Double> intraDistances = new ArrayList<>(), interDistances = new ArrayList<>();
-
-        for (int i = 0; i < trainingFVs.size(); i++) {
-            for (int j = i; j < trainingFVs.size(); j++) {
-                PersonFV trainingFVA = trainingFVs.get(i);
-                PersonFV trainingFVB = trainingFVs.get(j);
-
-                // Calculate the distance
-                if (trainingFVA.getId() != trainingFVB.getId()) {
-                    double distance = DoubleFVComparison.EUCLIDEAN.compare(pca.project(trainingFVA.getExtractedFeature()), pca.project(trainingFVB.getExtractedFeature()));
-
-                    if (verificationCheck(trainingFVA.getId(), trainingFVB.getId())) {
-                        interDistances.add(distance);
-                    } else {
-                        intraDistances.add(distance);
-                    }
-                }
-            }
-        }
+        phaseStart = metrics.record("matchingPhase", phaseStart);
 
-        // Sort the distances to form the histogram
-        interDistances.sort(Comparator.comparingDouble(o -> o));
-        intraDistances.sort(Comparator.comparingDouble(o -> o));
-        double EER = 0f;
-        double smallestDistance = -1f;
-
-        // Equal error rate calculation
-        for (double threshold = 0f; threshold < 1f; threshold += 0.000001f) {
-            double tempThreshold = threshold;
-            double FAR = interDistances.stream().filter(a -> a > tempThreshold).count() / (double) interDistances.size();
-            double FFR = intraDistances.stream().filter(a -> a < tempThreshold).count() / (double) intraDistances.size();
-
-            if (FAR == FFR || smallestDistance == -1f || Math.abs(FAR - FFR) < smallestDistance) {
-                EER = FAR * 100f;
-                smallestDistance = Math.abs(FAR - FFR);
-            }
-
-            if (FAR == FFR) {
-                break;
-            }
-        }
+        // Histogram of distances calculations, every training pair in parallel tiles over the engine's projected rows
+        double correctClassificationRate = (correctCount / 22f) * 100f;
+        int dimensions = engine.getDimensions();
+        AllPairsDistances.Buffers distances = AllPairsDistances.fromProperties(dimensions).collect(engine.getProjectedRows(), engine.size(), dimensions,
+                (rowA, rowB) -> verificationCheck(trainingFVs.get(rowA).getId(), trainingFVs.get(rowB).getId()));
+
+        // Equal error rate calculation from the sorted distances
+        VerificationMetrics verificationMetrics = new VerificationMetrics(distances.getInterDistances(), distances.getIntraDistances());
+        double EER = verificationMetrics.getEER() * 100f;
+        metrics.record("evaluationPhase", phaseStart);
         long endTime = System.currentTimeMillis();
+        model.close();
 
         // Print the results
         String results = "Correct Classification Rate (CCR) = " + (float) correctClassificationRate + "%"
@@ -162,9 +120,38 @@ public class Main {
         fileWriter.write(results);
         fileWriter.close();
 
+        // Stage timings and counters next to the results
+        metrics.write(PATH);
+
         System.out.println(results);
     }
 
+    /**
+     * Loads the pose estimation model
+     * @return The model
+     */
+    static ZooModel<Image, Joints> loadModel() throws IOException, ModelNotFoundException, MalformedModelException {
+        return Criteria.builder()
+                .optApplication(Application.CV.POSE_ESTIMATION)
+                .setTypes(Image.class, Joints.class)
+                .optFilter("backbone", "resnet18")
+                .optFilter("flavor", "v1b")
+                .optFilter("dataset", "imagenet")
+                .optEngine("MXNet")
+                .build()
+                .loadModel();
+    }
+
+    /**
+     * Fills the list of colours with random colours
+     * @param temperatures The list of colours
+     */
+    static void generateTemperatures(Float[][] temperatures) {
+        for (int i = 0; i < temperatures.length; i++) {
+            temperatures[i] = RGBColour.randomColour();
+        }
+    }
+
     /**
      * Classification check
      * @param testingId Testing FV id
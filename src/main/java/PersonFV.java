@@ -1,102 +1,226 @@
-import ai.djl.inference.Predictor;
 import ai.djl.modality.cv.BufferedImageFactory;
 import ai.djl.modality.cv.Image;
 import ai.djl.modality.cv.output.Joints;
 import ai.djl.translate.TranslateException;
 import org.openimaj.feature.DoubleFV;
+import org.openimaj.image.FImage;
 import org.openimaj.image.ImageUtilities;
 import org.openimaj.image.MBFImage;
-import org.openimaj.image.colour.ColourSpace;
 import org.openimaj.image.colour.RGBColour;
-import org.openimaj.image.connectedcomponent.GreyscaleConnectedComponentLabeler;
 import org.openimaj.image.pixel.ConnectedComponent;
 import org.openimaj.image.pixel.Pixel;
-import org.openimaj.image.pixel.PixelSet;
-import org.openimaj.image.segmentation.KMSpatialColourSegmenter;
-import org.openimaj.image.segmentation.SegmentationUtilities;
 import org.openimaj.math.geometry.shape.Rectangle;
 
-import javax.imageio.ImageIO;
-import java.io.File;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class PersonFV {
+    public static final String CONFIG = "crop=740x1280+100+115;pose=resnet18,v1b,imagenet;silhouette=56,2;joints=48;temperature=48";
+    public static final int FEATURE_LENGTH = 144;
+
+    // The crop, centred this far right of and below the image centre
+    public static final int CROP_WIDTH = 740, CROP_HEIGHT = 1280, CROP_OFFSET_X = 100, CROP_OFFSET_Y = 115;
+
+    // Silhouette bins, with the bins either side of vertical left out
+    private static final int MAX_BINS = 56, HALF_BLANK_BIN_SIZE = 2;
+    private static final double BIN_WIDTH = (2 * Math.PI) / MAX_BINS;
+    private static final ThreadLocal<BoundaryBuffers> BOUNDARY_BUFFERS = ThreadLocal.withInitial(BoundaryBuffers::new);
+
+    // Working rasters for callers without their own pool
+    private static final ImageBufferPool SHARED_BUFFERS = new ImageBufferPool(Runtime.getRuntime().availableProcessors(), null);
+
+    // Joint indices in pose model order
+    private static final int NOSE = 0, RIGHT_EYE = 1, LEFT_EYE = 2, RIGHT_EAR = 3, LEFT_EAR = 4, RIGHT_SHOULDER = 5,
+            LEFT_SHOULDER = 6, RIGHT_ELBOW = 7, LEFT_ELBOW = 8, RIGHT_WRIST = 9, LEFT_WRIST = 10, RIGHT_HIP = 11,
+            LEFT_HIP = 12, RIGHT_KNEE = 13, LEFT_KNEE = 14, RIGHT_ANKLE = 15, LEFT_ANKLE = 16, CENTROID = 17;
+
+    // The joint pairs measured for the joints FV, the rest of the FV is zero
+    private static final int[][] JOINT_PAIRS = {
+            // Invariant features to centroid
+            {NOSE, CENTROID}, {RIGHT_EYE, CENTROID}, {LEFT_EYE, CENTROID}, {RIGHT_EAR, CENTROID}, {LEFT_EAR, CENTROID},
+            {RIGHT_SHOULDER, CENTROID}, {LEFT_SHOULDER, CENTROID}, {RIGHT_ELBOW, CENTROID}, {LEFT_ELBOW, CENTROID},
+            {RIGHT_HIP, CENTROID}, {LEFT_HIP, CENTROID}, {RIGHT_KNEE, CENTROID}, {LEFT_KNEE, CENTROID},
+            {RIGHT_ANKLE, CENTROID}, {LEFT_ANKLE, CENTROID},
+            // Inter-face distances
+            {LEFT_EAR, LEFT_EYE}, {LEFT_EYE, NOSE}, {NOSE, RIGHT_EYE}, {RIGHT_EYE, RIGHT_EAR}, {LEFT_EAR, RIGHT_EAR},
+            // Body widths
+            {LEFT_SHOULDER, RIGHT_SHOULDER}, {LEFT_ELBOW, RIGHT_ELBOW}, {LEFT_HIP, RIGHT_HIP}, {LEFT_KNEE, RIGHT_KNEE},
+            {LEFT_ANKLE, RIGHT_ANKLE},
+            // Body heights
+            {LEFT_ELBOW, LEFT_SHOULDER}, {RIGHT_ELBOW, RIGHT_SHOULDER}, {LEFT_HIP, LEFT_SHOULDER},
+            {RIGHT_HIP, RIGHT_SHOULDER}, {LEFT_HIP, LEFT_ELBOW}, {RIGHT_HIP, RIGHT_ELBOW}, {LEFT_HIP, LEFT_KNEE},
+            {RIGHT_HIP, RIGHT_KNEE}, {LEFT_KNEE, LEFT_ANKLE}, {RIGHT_KNEE, RIGHT_ANKLE}
+    };
+
     private final int id;
     private final DoubleFV extractedFeature;
 
+    /**
+     * Creates a feature vector from an already extracted FV
+     * @param id The FV id
+     * @param extractedFeature The FV
+     */
+    public PersonFV(int id, DoubleFV extractedFeature) {
+        this.id = id;
+        this.extractedFeature = extractedFeature;
+    }
+
     /**
      * Creates a feature vector from an image
      * @param id The FV id
      * @param image The image
      * @param isTraining Is the image in the training or testing set?
-     * @param PATH The relative file path
+     * @param debugWriter The diagnostic image writer, or null to skip the diagnostic images
+     * @param segmenter The person segmenter
      * @param predictor The pose estimator predictor
      * @param temperatures The list of colours
+     * @param metrics The stage timings and counters
      */
-    public PersonFV(int id, MBFImage image, boolean isTraining, String PATH, Predictor<Image, Joints> predictor, Float[][] temperatures) throws IOException, TranslateException {
-        this.id = id;
-
-        // Crop the image
-        image = image.extractCenter((image.getWidth() / 2) + 100, (image.getHeight() / 2) + 115, 740, 1280);
-        MBFImage segmentedImage = image.clone();
+    public PersonFV(int id, MBFImage image, boolean isTraining, DebugImageWriter debugWriter, PersonSegmenter segmenter, PoseEstimator predictor, Float[][] temperatures, PipelineMetrics metrics) throws IOException, TranslateException {
+        this(id, image, false, isTraining, debugWriter, segmenter, predictor, temperatures, metrics, SHARED_BUFFERS);
+    }
 
-        // Image segmentation
-        KMSpatialColourSegmenter segmenter = new KMSpatialColourSegmenter(ColourSpace.CIE_Lab, 2);
-        SegmentationUtilities.renderSegments(image, segmenter.segment(image));
+    /**
+     * Creates a feature vector from an image or its already decoded crop. The crop, segmented image, labels and pose
+     * input are borrowed from the pool and returned before the constructor ends
+     * @param id The FV id
+     * @param image The image, or its crop, which the FV may draw over
+     * @param cropped Is the image already cropped, as by CropDecoder?
+     * @param isTraining Is the image in the training or testing set?
+     * @param debugWriter The diagnostic image writer, or null to skip the diagnostic images
+     * @param segmenter The person segmenter
+     * @param predictor The pose estimator predictor
+     * @param temperatures The list of colours
+     * @param metrics The stage timings and counters
+     * @param buffers The working raster pool
+     */
+    public PersonFV(int id, MBFImage image, boolean cropped, boolean isTraining, DebugImageWriter debugWriter, PersonSegmenter segmenter, PoseEstimator predictor, Float[][] temperatures, PipelineMetrics metrics, ImageBufferPool buffers) throws IOException, TranslateException {
+        this.id = id;
+        long extractionStart = System.nanoTime();
+
+        // Crop the image into pooled rasters
+        MBFImage crop = cropped ? image : crop(image, buffers.borrowColour(CROP_WIDTH, CROP_HEIGHT));
+        MBFImage segmentedImage = segmenter.drawsOverImage() ? copy(crop, buffers.borrowColour(crop.getWidth(), crop.getHeight())) : crop;
+        FImage labels = buffers.borrowGrey(crop.getWidth(), crop.getHeight());
+        try {
+            this.extractedFeature = extract(id, crop, segmentedImage, labels, isTraining, debugWriter, segmenter, predictor, temperatures, metrics, buffers, extractionStart);
+        } finally {
+            if (!cropped) {
+                buffers.release(crop);
+            }
+            if (segmentedImage != crop) {
+                buffers.release(segmentedImage);
+            }
+            buffers.release(labels);
+        }
+        metrics.record("extraction", extractionStart);
+        metrics.increment("extractedImages", 1);
+    }
 
-        // Get the two connected components
-        GreyscaleConnectedComponentLabeler labeler = new GreyscaleConnectedComponentLabeler();
-        List<ConnectedComponent> components = labeler.findComponents(image.flatten());
+    /**
+     * Extracts the silhouette, joints and temperature FV from a crop. The diagnostic images are only created when
+     * there is a debug writer
+     * @return The FV
+     */
+    private static DoubleFV extract(int id, MBFImage crop, MBFImage segmentedImage, FImage labels, boolean isTraining, DebugImageWriter debugWriter, PersonSegmenter segmenter, PoseEstimator predictor, Float[][] temperatures, PipelineMetrics metrics, ImageBufferPool buffers, long extractionStart) throws IOException, TranslateException {
+        long stageStart = metrics.record("crop", extractionStart);
 
-        // Get the person component
-        components.sort(Comparator.comparingInt(PixelSet::calculateArea));
-        Collections.reverse(components);
-        ConnectedComponent component = components.get(1);
+        // Image segmentation to get the person component
+        segmenter.segment(crop, labels);
+        stageStart = metrics.record("segmentation", stageStart);
+        ConnectedComponent component = PersonSegmenter.findPerson(labels);
+        stageStart = metrics.record("labeling", stageStart);
 
-        // Get the boundary pixels and all contained pixels
-        Set<Pixel> pixels = component.getPixels();
+        // Build a dense mask of all contained pixels
+        PersonMask mask = PersonMask.fromComponent(component, segmentedImage.getWidth(), segmentedImage.getHeight());
 
         // Remove all unnecessary pixels from image
-        for (int y = 0; y < segmentedImage.getHeight(); y++) {
-            for (int x = 0; x < segmentedImage.getWidth(); x++) {
-                if (!pixels.contains(new Pixel(x, y))) {
-                    segmentedImage.getBand(0).pixels[y][x] = 1;
-                    segmentedImage.getBand(1).pixels[y][x] = 1;
-                    segmentedImage.getBand(2).pixels[y][x] = 1;
-                }
-            }
-        }
+        maskImage(segmentedImage, mask);
+        stageStart = metrics.record("masking", stageStart);
 
         // Print the original image
-        String resultPath = isTraining ? "training" : "testing";
-        File imageFile = new File(PATH + "segmented\\" + resultPath + "\\" + id + ".jpg");
-        ImageUtilities.write(segmentedImage, imageFile);
+        if (debugWriter != null) {
+            debugWriter.write("segmented", isTraining, id, segmentedImage.clone());
+            stageStart = metrics.record("debugWrite", stageStart);
+        }
 
-        // Creates the new images
-        MBFImage temperatureImage = segmentedImage.clone();
-        MBFImage jointsImage = segmentedImage.clone();
-        Rectangle boundingBox = component.calculateRegularBoundingBox();
+        // Creates the new images, only needed for the diagnostic images
+        MBFImage temperatureImage = debugWriter != null ? segmentedImage.clone() : null;
+        MBFImage jointsImage = debugWriter != null ? segmentedImage.clone() : null;
 
-        // Find the joints from the segmented image
-        Image jointlessImage = BufferedImageFactory.getInstance().fromImage(ImageIO.read(imageFile));
-        Joints joints = predictor.predict(jointlessImage);
+        // Find the joints from the segmented image, converted in memory. The input is only returned to the pool once
+        // the prediction is done with it
+        BufferedImage poseInput = buffers.borrowDisplay(segmentedImage.getWidth(), segmentedImage.getHeight());
+        Joints joints = predictor.predict(toPoseInput(segmentedImage, poseInput));
+        buffers.release(poseInput);
+        stageStart = metrics.record("pose", stageStart);
 
         // Find the joints from the segmented image and draw them
         ArrayList<Pixel> jointPixels = new ArrayList<>();
         for (Joints.Joint joint : joints.getJoints()) {
-            Pixel pixel = new Pixel((int) (joint.getX() * jointsImage.getWidth()), (int) (joint.getY() * jointsImage.getHeight()));
-            jointsImage.drawPoint(pixel, RGBColour.RED, 6);
+            Pixel pixel = new Pixel((int) (joint.getX() * segmentedImage.getWidth()), (int) (joint.getY() * segmentedImage.getHeight()));
+            if (jointsImage != null) {
+                jointsImage.drawPoint(pixel, RGBColour.RED, 6);
+            }
             jointPixels.add(pixel);
         }
 
         // Draw the component outline
-        for (Pixel pixel : component.getOuterBoundary()) {
-            jointsImage.drawPoint(pixel, RGBColour.GREEN, 4);
+        if (jointsImage != null) {
+            for (Pixel pixel : component.getOuterBoundary()) {
+                jointsImage.drawPoint(pixel, RGBColour.GREEN, 4);
+            }
         }
 
         // Creates a pose model
-        PoseModel poseModel = new PoseModel(jointPixels.get(0), // nose
+        PoseModel poseModel = toPoseModel(jointPixels);
+
+        // Find the centroid point
+        Pixel centroid = mask.calculateCentroidPixel(); // calculateMiddle(calculateMiddle(poseModel.leftShoulder(), poseModel.rightShoulder()), calculateMiddle(poseModel.rightHip(), poseModel.leftHip()));
+
+        // Print the joints image
+        if (jointsImage != null) {
+            jointsImage.drawPoint(centroid, RGBColour.BLUE, 6);
+            debugWriter.write("joints", isTraining, id, jointsImage);
+            stageStart = metrics.record("debugWrite", stageStart);
+        }
+
+        // Creates the temperature image
+        double[] temperatureCounts = temperatureHistogram(mask, centroid, temperatures, temperatureImage, metrics);
+        stageStart = metrics.record("temperature", stageStart);
+
+        // Prints the temperature image
+        if (temperatureImage != null) {
+            debugWriter.write("temperature", isTraining, id, temperatureImage);
+            stageStart = metrics.record("debugWrite", stageStart);
+        }
+
+        // Extract silhouette feature vector
+        double[] doubleDistances = silhouetteDistances(component, centroid);
+        DoubleFV silhouetteFV = new DoubleFV(doubleDistances).normaliseFV();
+        stageStart = metrics.record("silhouette", stageStart);
+
+        // Extract joints feature vector
+        double[] jointsArray = jointDistances(poseModel, centroid);
+        DoubleFV jointsFV = new DoubleFV(jointsArray).normaliseFV();
+        metrics.record("joints", stageStart);
+
+        // Extract temperatures feature vector
+        DoubleFV temperaturesFV = new DoubleFV(temperatureCounts).normaliseFV();
+
+        return silhouetteFV.concatenate(jointsFV).concatenate(temperaturesFV);
+    }
+
+    /**
+     * Creates a pose model from the joint pixels in pose model order, the wrists and below count from the end
+     * @param jointPixels The joint pixels
+     * @return The pose
+     */
+    public static PoseModel toPoseModel(List<Pixel> jointPixels) {
+        return new PoseModel(jointPixels.get(0), // nose
                 jointPixels.get(1), // right eye
                 jointPixels.get(2), // left eye
                 jointPixels.get(3), // right ear
@@ -113,22 +237,105 @@ public class PersonFV {
                 jointPixels.get(jointPixels.size() - 3), // left knee
                 jointPixels.get(jointPixels.size() - 2), // right ankle
                 jointPixels.get(jointPixels.size() - 1)); // left ankle
+    }
 
-        // Draw the centroid point
-        Pixel centroid = component.calculateCentroidPixel(); // calculateMiddle(calculateMiddle(poseModel.leftShoulder(), poseModel.rightShoulder()), calculateMiddle(poseModel.rightHip(), poseModel.leftHip()));
-        jointsImage.drawPoint(centroid, RGBColour.BLUE, 6);
+    /**
+     * Crops the image to the area the person stands in
+     * @param image The image
+     * @return The cropped image
+     */
+    public static MBFImage crop(MBFImage image) {
+        return image.extractCenter((image.getWidth() / 2) + CROP_OFFSET_X, (image.getHeight() / 2) + CROP_OFFSET_Y, CROP_WIDTH, CROP_HEIGHT);
+    }
 
-        // Print the joints image
-        File jointsImageFile = new File(PATH + "joints\\" + resultPath + "\\" + id + ".jpg");
-        ImageUtilities.write(jointsImage, jointsImageFile);
+    /**
+     * Crops the image to the area the person stands in, the same pixels as crop
+     * @param image The image
+     * @param crop The CROP_WIDTH x CROP_HEIGHT image to fill
+     * @return The cropped image
+     */
+    public static MBFImage crop(MBFImage image, MBFImage crop) {
+        image.extractROI((image.getWidth() / 2) + CROP_OFFSET_X - (CROP_WIDTH / 2), (image.getHeight() / 2) + CROP_OFFSET_Y - (CROP_HEIGHT / 2), crop);
+        return crop;
+    }
 
-        // Creates the temperature image
-        double[] temperatureCounts = new double[48];
+    /**
+     * Copies every band of an image into another of the same size
+     * @param image The image
+     * @param copy The image to fill
+     * @return The copy
+     */
+    public static MBFImage copy(MBFImage image, MBFImage copy) {
+        for (int band = 0; band < image.numBands(); band++) {
+            float[][] source = image.getBand(band).pixels, target = copy.getBand(band).pixels;
+            for (int y = 0; y < image.getHeight(); y++) {
+                System.arraycopy(source[y], 0, target[y], 0, image.getWidth());
+            }
+        }
+        return copy;
+    }
 
-        for (int y = 0; y < temperatureImage.getHeight(); y++) {
-            for (int x = 0; x < temperatureImage.getWidth(); x++) {
-                if (pixels.contains(new Pixel(x, y))) {
-                    double divide = ((float) temperatureImage.getHeight() - (float) y) / boundingBox.getHeight();
+    /**
+     * Whitens every pixel outside the mask
+     * @param image The cropped image
+     * @param mask The person mask
+     */
+    public static void maskImage(MBFImage image, PersonMask mask) {
+        float[][] red = image.getBand(0).pixels, green = image.getBand(1).pixels, blue = image.getBand(2).pixels;
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                if (!mask.contains(x, y)) {
+                    red[y][x] = 1;
+                    green[y][x] = 1;
+                    blue[y][x] = 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts the segmented image to a pose estimation input in memory
+     * @param image The segmented image
+     * @return The pose estimation input
+     */
+    public static Image toPoseInput(MBFImage image) {
+        return BufferedImageFactory.getInstance().fromImage(ImageUtilities.createBufferedImageForDisplay(image));
+    }
+
+    /**
+     * Converts the segmented image to a pose estimation input in a reused raster
+     * @param image The segmented image
+     * @param display A BGR byte image of the same size, must not be modified until the prediction is done
+     * @return The pose estimation input
+     */
+    public static Image toPoseInput(MBFImage image, BufferedImage display) {
+        return BufferedImageFactory.getInstance().fromImage(ImageUtilities.createBufferedImageForDisplay(image, display));
+    }
+
+    /**
+     * Counts the person pixels in each temperature band, split into left and right of the centroid
+     * @param mask The person mask
+     * @param centroid The centroid
+     * @param temperatures The list of colours
+     * @param temperatureImage The image to colour each pixel by its band, or null
+     * @param metrics Counts the pixels that fall outside every band, or null
+     * @return The pixel count per band
+     */
+    public static double[] temperatureHistogram(PersonMask mask, Pixel centroid, Float[][] temperatures, MBFImage temperatureImage, PipelineMetrics metrics) {
+        Rectangle boundingBox = mask.calculateRegularBoundingBox();
+        double[] temperatureCounts = new double[temperatures.length];
+        long outOfRange = 0;
+
+        float[][] temperatureRed = null, temperatureGreen = null, temperatureBlue = null;
+        if (temperatureImage != null) {
+            temperatureRed = temperatureImage.getBand(0).pixels;
+            temperatureGreen = temperatureImage.getBand(1).pixels;
+            temperatureBlue = temperatureImage.getBand(2).pixels;
+        }
+        for (int y = 0; y < mask.getHeight(); y++) {
+            for (int x = 0; x < mask.getWidth(); x++) {
+                if (mask.contains(x, y)) {
+                    double divide = ((float) mask.getHeight() - (float) y) / boundingBox.getHeight();
                     double doubleIndex = (divide * temperatures.length) / 2f;
                     int index = (int) Math.floor(doubleIndex);
 
@@ -137,114 +344,147 @@ public class PersonFV {
                         index += temperatures.length / 2f;
                     }
 
+                    // Pixels above the bounding box scale have no band
+                    if (index < 0 || index >= temperatures.length) {
+                        outOfRange++;
+                        continue;
+                    }
+
                     // Sets the temperature of the pixel
-                    try {
-                        Float[] temperature = temperatures[index];
-                        temperatureImage.getBand(0).pixels[y][x] = temperature[0];
-                        temperatureImage.getBand(1).pixels[y][x] = temperature[1];
-                        temperatureImage.getBand(2).pixels[y][x] = temperature[2];
-
-                        if (temperatureCounts[index] == 0) {
-                            temperatureCounts[index] = 1;
-                        } else {
-                            temperatureCounts[index] = temperatureCounts[index] + 1;
-                        }
-                    } catch (Exception ignored) { }
+                    Float[] temperature = temperatures[index];
+                    if (temperatureRed != null) {
+                        temperatureRed[y][x] = temperature[0];
+                        temperatureGreen[y][x] = temperature[1];
+                        temperatureBlue[y][x] = temperature[2];
+                    }
+                    temperatureCounts[index]++;
                 }
             }
         }
-
-        // Prints the temperature image
-        File temperatureImageFile = new File(PATH + "temperature\\" + resultPath + "\\" + id + ".jpg");
-        ImageUtilities.write(temperatureImage, temperatureImageFile);
-
-        // Extract silhouette feature vector
-        int maxBins = 56, halfBlankBinSize = 2, binCount = 0, backCount = 0;
-        double[] doubleDistances = new double[maxBins - (halfBlankBinSize * 4)];
-        ArrayList<PolarPixel> borderPixels = new ArrayList<>();
-
-        for (Pixel pixel : component.getOuterBoundary()) {
-            borderPixels.add(new PolarPixel(calculateDistance(pixel, centroid), calculateAngle(pixel, centroid)));
+        if (metrics != null && outOfRange > 0) {
+            metrics.increment("temperatureOutOfRangePixels", outOfRange);
         }
-        borderPixels.sort(Comparator.comparingDouble(PolarPixel::angle));
+        return temperatureCounts;
+    }
 
-        ArrayList<Double> bin = new ArrayList<>();
-        for (PolarPixel pixel : borderPixels) {
-            bin.add(pixel.radius());
+    /**
+     * Averages the centroid distance of the outer boundary in each angular bin, skipping the bins either side of
+     * vertical
+     * @param component The person component
+     * @param centroid The centroid
+     * @return The mean distance per bin
+     */
+    public static double[] silhouetteDistances(ConnectedComponent component, Pixel centroid) {
+        return silhouetteDistances(component.getOuterBoundary(), centroid);
+    }
 
-            if ((pixel.angle() > (((2 * Math.PI) / maxBins) * (binCount + 1))) || pixel == borderPixels.get(borderPixels.size() - 1)) {
-                double sum = 0;
-                for (double value : bin) {
-                    sum += value;
-                }
+    /**
+     * Averages the centroid distance of the boundary pixels in each angular bin, skipping the bins either side of
+     * vertical. The pixels are visited in angle order, ties in boundary order, and a bin closes on the first pixel past
+     * its upper edge
+     * @param boundary The boundary pixels
+     * @param centroid The centroid
+     * @return The mean distance per bin
+     */
+    public static double[] silhouetteDistances(List<Pixel> boundary, Pixel centroid) {
+        int pixelCount = boundary.size(), binCount = 0, backCount = 0, binSize = 0;
+        double[] doubleDistances = new double[MAX_BINS - (HALF_BLANK_BIN_SIZE * 4)];
+        if (pixelCount == 0) {
+            return doubleDistances;
+        }
 
-                if ((binCount > halfBlankBinSize && binCount < ((maxBins / 2) - halfBlankBinSize))
-                        || (binCount > ((maxBins / 2) + halfBlankBinSize) && binCount < (maxBins - halfBlankBinSize))) {
-                    doubleDistances[binCount - backCount] = sum / bin.size();
+        // Polar coordinates into reused primitive buffers
+        BoundaryBuffers buffers = BOUNDARY_BUFFERS.get().ensureCapacity(pixelCount);
+        double[] radii = buffers.radii, angles = buffers.angles;
+        for (int i = 0; i < pixelCount; i++) {
+            Pixel pixel = boundary.get(i);
+            radii[i] = calculateDistance(pixel, centroid);
+            angles[i] = calculateAngle(pixel, centroid);
+        }
+        int[] order = sortByAngle(buffers, pixelCount);
+
+        double sum = 0;
+        for (int i = 0; i < pixelCount; i++) {
+            int pixel = order[i];
+            sum += radii[pixel];
+            binSize++;
+
+            if ((angles[pixel] > (BIN_WIDTH * (binCount + 1))) || i == pixelCount - 1) {
+                if ((binCount > HALF_BLANK_BIN_SIZE && binCount < ((MAX_BINS / 2) - HALF_BLANK_BIN_SIZE))
+                        || (binCount > ((MAX_BINS / 2) + HALF_BLANK_BIN_SIZE) && binCount < (MAX_BINS - HALF_BLANK_BIN_SIZE))) {
+                    doubleDistances[binCount - backCount] = sum / binSize;
                 } else {
                     backCount++;
                 }
                 binCount++;
-                bin.clear();
+                sum = 0;
+                binSize = 0;
             }
         }
-        DoubleFV silhouetteFV = new DoubleFV(doubleDistances).normaliseFV();
+        return doubleDistances;
+    }
 
-        // Extract joints feature vector
-        double[] jointsArray = new double[48];
+    /**
+     * Stable sort of the pixel indices by angle, with the same order as a stable sort on Double.compare. The indices
+     * are counting sorted into one angle bucket per pixel, then insertion sorted, which only moves them within their
+     * bucket
+     * @param buffers The buffers holding the angles
+     * @param pixelCount The number of pixels
+     * @return The sorted indices
+     */
+    private static int[] sortByAngle(BoundaryBuffers buffers, int pixelCount) {
+        double[] angles = buffers.angles;
+        int[] order = buffers.order, starts = buffers.starts;
+        int bucketCount = Math.max(1, pixelCount);
+        double scale = bucketCount / (2 * Math.PI);
+
+        // Counting sort, NaN angles go last like Double.compare
+        Arrays.fill(starts, 0, bucketCount + 2, 0);
+        for (int i = 0; i < pixelCount; i++) {
+            starts[angleBucket(angles[i], scale, bucketCount) + 1]++;
+        }
+        for (int bucket = 0; bucket <= bucketCount; bucket++) {
+            starts[bucket + 1] += starts[bucket];
+        }
+        for (int i = 0; i < pixelCount; i++) {
+            order[starts[angleBucket(angles[i], scale, bucketCount)]++] = i;
+        }
 
-        // Invariant features to centroid
-        jointsArray[0] = calculateDistance(poseModel.nose(), centroid);
-        jointsArray[1] = calculateDistance(poseModel.rightEye(), centroid);
-        jointsArray[2] = calculateDistance(poseModel.leftEye(), centroid);
-        jointsArray[3] = calculateDistance(poseModel.rightEar(), centroid);
-        jointsArray[4] = calculateDistance(poseModel.leftEar(), centroid);
-        jointsArray[5] = calculateDistance(poseModel.rightShoulder(), centroid);
-        jointsArray[6] = calculateDistance(poseModel.leftShoulder(), centroid);
-        jointsArray[7] = calculateDistance(poseModel.rightElbow(), centroid);
-        jointsArray[8] = calculateDistance(poseModel.leftElbow(), centroid);
-        jointsArray[9] = calculateDistance(poseModel.rightHip(), centroid);
-        jointsArray[10] = calculateDistance(poseModel.leftHip(), centroid);
-        jointsArray[11] = calculateDistance(poseModel.rightKnee(), centroid);
-        jointsArray[12] = calculateDistance(poseModel.leftKnee(), centroid);
-        jointsArray[13] = calculateDistance(poseModel.rightAnkle(), centroid);
-        jointsArray[14] = calculateDistance(poseModel.leftAnkle(), centroid);
-
-        // Inter-face distances
-        jointsArray[15] = calculateDistance(poseModel.leftEar(), poseModel.leftEye());
-        jointsArray[16] = calculateDistance(poseModel.leftEye(), poseModel.nose());
-        jointsArray[17] = calculateDistance(poseModel.nose(), poseModel.rightEye());
-        jointsArray[18] = calculateDistance(poseModel.rightEye(), poseModel.rightEar());
-        jointsArray[19] = calculateDistance(poseModel.leftEar(), poseModel.rightEar());
-
-        // Body widths
-        jointsArray[20] = calculateDistance(poseModel.leftShoulder(), poseModel.rightShoulder());
-        jointsArray[21] = calculateDistance(poseModel.leftElbow(), poseModel.rightElbow());
-        jointsArray[22] = calculateDistance(poseModel.leftHip(), poseModel.rightHip());
-        jointsArray[23] = calculateDistance(poseModel.leftKnee(), poseModel.rightKnee());
-        jointsArray[24] = calculateDistance(poseModel.leftAnkle(), poseModel.rightAnkle());
-
-        // Body heights
-        jointsArray[25] = calculateDistance(poseModel.leftElbow(), poseModel.leftShoulder());
-        jointsArray[26] = calculateDistance(poseModel.rightElbow(), poseModel.rightShoulder());
-        jointsArray[27] = calculateDistance(poseModel.leftHip(), poseModel.leftShoulder());
-        jointsArray[28] = calculateDistance(poseModel.rightHip(), poseModel.rightShoulder());
-        jointsArray[29] = calculateDistance(poseModel.leftHip(), poseModel.leftElbow());
-        jointsArray[30] = calculateDistance(poseModel.rightHip(), poseModel.rightElbow());
-        jointsArray[31] = calculateDistance(poseModel.leftHip(), poseModel.leftKnee());
-        jointsArray[32] = calculateDistance(poseModel.rightHip(), poseModel.rightKnee());
-        jointsArray[33] = calculateDistance(poseModel.leftKnee(), poseModel.leftAnkle());
-        jointsArray[34] = calculateDistance(poseModel.rightKnee(), poseModel.rightAnkle());
-
-        for (int i = 35; i < 48; i++) {
-            jointsArray[i] = 0;
+        // Insertion sort, equal angles keep their boundary order
+        for (int i = 1; i < pixelCount; i++) {
+            int pixel = order[i], j = i;
+            while (j > 0 && Double.compare(angles[order[j - 1]], angles[pixel]) > 0) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = pixel;
         }
-        DoubleFV jointsFV = new DoubleFV(jointsArray).normaliseFV();
+        return order;
+    }
 
-        // Extract temperatures feature vector
-        DoubleFV temperaturesFV = new DoubleFV(temperatureCounts).normaliseFV();
+    /**
+     * @return The angle's bucket, which never decreases as the angle increases
+     */
+    private static int angleBucket(double angle, double scale, int bucketCount) {
+        if (Double.isNaN(angle)) {
+            return bucketCount;
+        }
+        return Math.max(0, Math.min(bucketCount - 1, (int) (angle * scale)));
+    }
 
-        this.extractedFeature = silhouetteFV.concatenate(jointsFV).concatenate(temperaturesFV);
+    /**
+     * Distances between the joints and to the centroid
+     * @param poseModel The pose
+     * @param centroid The centroid
+     * @return The joint distances, zero padded
+     */
+    public static double[] jointDistances(PoseModel poseModel, Pixel centroid) {
+        double[] jointsArray = new double[48];
+        for (int i = 0; i < JOINT_PAIRS.length; i++) {
+            int jointA = JOINT_PAIRS[i][0], jointB = JOINT_PAIRS[i][1];
+            jointsArray[i] = calculateDistance(poseModel.joint(jointA), jointB == CENTROID ? centroid : poseModel.joint(jointB));
+        }
+        return jointsArray;
     }
 
     /**
@@ -253,34 +493,31 @@ public class PersonFV {
      * @param pixelB Pixel B
      * @return The distance
      */
-    public double calculateDistance(Pixel pixelA, Pixel pixelB) {
-        return Math.sqrt(Math.pow(pixelA.getX() - pixelB.getX(), 2) + Math.pow(pixelA.getY() - pixelB.getY(), 2));
+    public static double calculateDistance(Pixel pixelA, Pixel pixelB) {
+        double xDiff = pixelA.x - pixelB.x, yDiff = pixelA.y - pixelB.y;
+        return Math.sqrt((xDiff * xDiff) + (yDiff * yDiff));
     }
 
     /**
      * Calculate the angle between two pixels
      * @param pixelA Pixel A
      * @param pixelB pixel B
-     * @return The angle (radians)
+     * @return The angle (radians), NaN if they are the same pixel
      */
-    public double calculateAngle(Pixel pixelA, Pixel pixelB) {
-        double xDiff = pixelA.getX() - pixelB.getX(), yDiff = pixelA.getY() - pixelB.getY();
-        double angle = Math.atan(yDiff / xDiff);
+    public static double calculateAngle(Pixel pixelA, Pixel pixelB) {
+        double xDiff = pixelA.x - pixelB.x, yDiff = pixelA.y - pixelB.y;
+        if (xDiff == 0) {
+            return yDiff > 0 ? Math.PI / 2 : yDiff < 0 ? 3 * (Math.PI / 2) : Double.NaN;
+        } else if (yDiff == 0) {
+            return xDiff < 0 ? Math.PI : 0;
+        }
 
+        double angle = Math.atan(yDiff / xDiff);
         if (xDiff < 0) {
             angle += Math.PI;
-        } else if (xDiff > 0 && yDiff < 0) {
+        } else if (yDiff < 0) {
             angle += 2 * Math.PI;
         }
-        if (xDiff == 0 && yDiff > 0) {
-            angle = Math.PI / 2;
-        } else if (xDiff == 0 && yDiff < 0) {
-            angle = 3 * (Math.PI / 2);
-        } else if (xDiff < 0 && yDiff == 0) {
-            angle = Math.PI;
-        } else if (xDiff > 0 && yDiff == 0) {
-            angle = 0;
-        }
         return angle;
     }
 
@@ -298,13 +535,6 @@ public class PersonFV {
         return extractedFeature;
     }
 
-    /**
-     * A record to represent a pixel with polar coordinates
-     * @param radius
-     * @param angle
-     */
-    public record PolarPixel(double radius, double angle) { }
-
     /**
      * A record to represent a pose
      * @param nose
@@ -328,5 +558,55 @@ public class PersonFV {
     public record PoseModel(Pixel nose, Pixel rightEye, Pixel leftEye, Pixel rightEar, Pixel leftEar, Pixel rightShoulder,
                             Pixel leftShoulder, Pixel rightElbow, Pixel leftElbow, Pixel rightWrist, Pixel leftWrist,
                             Pixel rightHip, Pixel leftHip, Pixel rightKnee, Pixel leftKnee, Pixel rightAnkle,
-                            Pixel leftAnkle) { }
+                            Pixel leftAnkle) {
+        /**
+         * @param joint The joint index, NOSE to LEFT_ANKLE
+         * @return The joint
+         */
+        public Pixel joint(int joint) {
+            return switch (joint) {
+                case NOSE -> nose;
+                case RIGHT_EYE -> rightEye;
+                case LEFT_EYE -> leftEye;
+                case RIGHT_EAR -> rightEar;
+                case LEFT_EAR -> leftEar;
+                case RIGHT_SHOULDER -> rightShoulder;
+                case LEFT_SHOULDER -> leftShoulder;
+                case RIGHT_ELBOW -> rightElbow;
+                case LEFT_ELBOW -> leftElbow;
+                case RIGHT_WRIST -> rightWrist;
+                case LEFT_WRIST -> leftWrist;
+                case RIGHT_HIP -> rightHip;
+                case LEFT_HIP -> leftHip;
+                case RIGHT_KNEE -> rightKnee;
+                case LEFT_KNEE -> leftKnee;
+                case RIGHT_ANKLE -> rightAnkle;
+                case LEFT_ANKLE -> leftAnkle;
+                default -> throw new IllegalArgumentException("Unknown joint " + joint);
+            };
+        }
+    }
+
+    /**
+     * Reused per thread polar coordinate and sort buffers for the silhouette, grown to the longest boundary seen
+     */
+    private static final class BoundaryBuffers {
+        private double[] radii = new double[0], angles = new double[0];
+        private int[] order = new int[0], starts = new int[2];
+
+        /**
+         * @param pixelCount The number of boundary pixels
+         * @return These buffers, with room for the pixels
+         */
+        private BoundaryBuffers ensureCapacity(int pixelCount) {
+            if (radii.length < pixelCount) {
+                int capacity = Math.max(pixelCount, radii.length * 2);
+                radii = new double[capacity];
+                angles = new double[capacity];
+                order = new int[capacity];
+                starts = new int[capacity + 2];
+            }
+            return this;
+        }
+    }
 }
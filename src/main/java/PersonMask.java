@@ -0,0 +1,102 @@
+import org.openimaj.image.pixel.ConnectedComponent;
+import org.openimaj.image.pixel.Pixel;
+import org.openimaj.math.geometry.shape.Rectangle;
+
+public class PersonMask {
+    private final int width, height;
+    private final boolean[] mask;
+    private int area = 0, minX = Integer.MAX_VALUE, maxX = 0, minY = Integer.MAX_VALUE, maxY = 0;
+    private long sumX = 0, sumY = 0;
+
+    /**
+     * Creates an empty mask
+     * @param width The image width
+     * @param height The image height
+     */
+    public PersonMask(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.mask = new boolean[width * height];
+    }
+
+    /**
+     * Creates a mask from the pixels of a component in a single pass
+     * @param component The component
+     * @param width The image width
+     * @param height The image height
+     * @return The mask
+     */
+    public static PersonMask fromComponent(ConnectedComponent component, int width, int height) {
+        PersonMask mask = new PersonMask(width, height);
+        for (Pixel pixel : component.getPixels()) {
+            mask.add(pixel.x, pixel.y);
+        }
+        return mask;
+    }
+
+    /**
+     * Adds a pixel to the mask and updates the bounds and centroid sums
+     * @param x The x coordinate
+     * @param y The y coordinate
+     */
+    public void add(int x, int y) {
+        int index = (y * width) + x;
+        if (mask[index]) {
+            return;
+        }
+        mask[index] = true;
+        area++;
+        sumX += x;
+        sumY += y;
+        minX = Math.min(minX, x);
+        maxX = Math.max(maxX, x);
+        minY = Math.min(minY, y);
+        maxY = Math.max(maxY, y);
+    }
+
+    /**
+     * @param x The x coordinate
+     * @param y The y coordinate
+     * @return True if the pixel is part of the person
+     */
+    public boolean contains(int x, int y) {
+        return mask[(y * width) + x];
+    }
+
+    /**
+     * Same bounds as PixelSet.calculateRegularBoundingBox
+     * @return The bounding box
+     */
+    public Rectangle calculateRegularBoundingBox() {
+        return new Rectangle(minX, minY, maxX - minX, maxY - minY);
+    }
+
+    /**
+     * Same truncation as PixelSet.calculateCentroidPixel
+     * @return The centroid pixel
+     */
+    public Pixel calculateCentroidPixel() {
+        return new Pixel((int) ((double) sumX / area), (int) ((double) sumY / area));
+    }
+
+    /**
+     * @return The number of pixels in the mask
+     */
+    public int getArea() {
+        return area;
+    }
+
+    /**
+     * @return The image width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return The image height
+     */
+    public int getHeight() {
+        return height;
+    }
+}
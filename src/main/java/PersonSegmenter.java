@@ -0,0 +1,421 @@
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+import org.openimaj.image.connectedcomponent.GreyscaleConnectedComponentLabeler;
+import org.openimaj.image.pixel.ConnectedComponent;
+import org.openimaj.image.pixel.PixelSet;
+import org.openimaj.image.segmentation.KMSpatialColourSegmenter;
+import org.openimaj.image.segmentation.SegmentationUtilities;
+import org.openimaj.math.geometry.shape.Rectangle;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+public class PersonSegmenter {
+    private static final int K = 2, ITERATIONS = 20;
+    private static final float COLOUR_SCALE = 1 / 100f, SPATIAL_WEIGHT = 0.5f;
+
+    private final Mode mode;
+    private final int scale;
+    private final Rectangle roi;
+    private final String reference;
+    private volatile float[][] centroids;
+
+    /**
+     * Creates a segmenter that finds the person component in a cropped image, in CENTROIDS mode the centroids are
+     * learnt from the first image of the first extracted set
+     * @param mode The segmentation strategy
+     * @param scale The downsampling factor for the DOWNSAMPLED and CENTROIDS modes
+     * @param roi The region to segment in the DOWNSAMPLED and CENTROIDS modes, or null for the whole image
+     */
+    public PersonSegmenter(Mode mode, int scale, Rectangle roi) {
+        this(mode, scale, roi, "image0");
+    }
+
+    /**
+     * Creates a segmenter that finds the person component in a cropped image
+     * @param mode The segmentation strategy
+     * @param scale The downsampling factor for the DOWNSAMPLED and CENTROIDS modes
+     * @param roi The region to segment in the DOWNSAMPLED and CENTROIDS modes, or null for the whole image
+     * @param reference Names the image the CENTROIDS mode learns from, part of the feature store fingerprint
+     */
+    public PersonSegmenter(Mode mode, int scale, Rectangle roi, String reference) {
+        if (scale < 1) {
+            throw new IllegalArgumentException("scale must be at least 1");
+        }
+        if (roi != null && (roi.width <= 0 || roi.height <= 0)) {
+            throw new IllegalArgumentException("The segmentation region must have a positive width and height");
+        }
+        this.mode = mode;
+        this.scale = scale;
+        this.roi = roi;
+        this.reference = reference;
+    }
+
+    /**
+     * Creates a segmenter from -Dsegmentation=full|downsampled|centroids, -DsegmentationScale=4,
+     * -DsegmentationRoi=x,y,width,height and -DsegmentationReference, the image the CENTROIDS mode learns from, by
+     * default the first training image
+     * @return The segmenter
+     */
+    public static PersonSegmenter fromProperties() throws IOException {
+        Mode mode = Mode.valueOf(System.getProperty("segmentation", "full").toUpperCase());
+        int scale = Integer.getInteger("segmentationScale", 4);
+        Rectangle roi = null;
+        String roiProperty = System.getProperty("segmentationRoi");
+        if (roiProperty != null) {
+            String[] values = roiProperty.split(",");
+            if (values.length != 4) {
+                throw new IllegalArgumentException("segmentationRoi must be x,y,width,height, got " + roiProperty);
+            }
+            roi = new Rectangle(Float.parseFloat(values[0].trim()), Float.parseFloat(values[1].trim()), Float.parseFloat(values[2].trim()), Float.parseFloat(values[3].trim()));
+        }
+
+        // The reference is named by its content hash, so the fingerprint changes with the image
+        String referenceProperty = System.getProperty("segmentationReference");
+        if (mode != Mode.CENTROIDS || referenceProperty == null) {
+            return new PersonSegmenter(mode, scale, roi);
+        }
+        File referenceFile = new File(referenceProperty);
+        String referenceHash;
+        try (InputStream content = new FileInputStream(referenceFile)) {
+            referenceHash = FeatureStore.hash(content);
+        }
+        PersonSegmenter segmenter = new PersonSegmenter(mode, scale, roi, referenceHash.substring(0, 16));
+        segmenter.learnCentroids(PersonFV.crop(ImageUtilities.readMBF(referenceFile)));
+        return segmenter;
+    }
+
+    /**
+     * Segments the image into two colour clusters and returns the second largest connected component
+     * @param image The cropped image, the FULL mode draws the segments over it
+     * @return The person component
+     */
+    public ConnectedComponent findPerson(MBFImage image) {
+        return findPerson(segment(image));
+    }
+
+    /**
+     * Segments the image into two colour clusters
+     * @param image The cropped image, the FULL mode draws the segments over it
+     * @return The label image, one grey level per cluster
+     */
+    public FImage segment(MBFImage image) {
+        return segment(image, new FImage(image.getWidth(), image.getHeight()));
+    }
+
+    /**
+     * Segments the image into two colour clusters, writing every label pixel
+     * @param image The cropped image, the FULL mode draws the segments over it
+     * @param labels The label image to fill, the same size as the image
+     * @return The label image, one grey level per cluster
+     */
+    public FImage segment(MBFImage image, FImage labels) {
+        if (mode == Mode.FULL) {
+            KMSpatialColourSegmenter segmenter = new KMSpatialColourSegmenter(ColourSpace.CIE_Lab, K);
+            SegmentationUtilities.renderSegments(image, segmenter.segment(image));
+            return flatten(image, labels);
+        }
+        return clusterLabels(image, labels);
+    }
+
+    /**
+     * Averages the bands like MBFImage.flatten, into an existing image
+     * @param image The segmented image
+     * @param labels The label image to fill
+     * @return The label image
+     */
+    private static FImage flatten(MBFImage image, FImage labels) {
+        float[][] red = image.getBand(0).pixels, green = image.getBand(1).pixels, blue = image.getBand(2).pixels;
+        for (int y = 0; y < image.getHeight(); y++) {
+            float[] labelRow = labels.pixels[y];
+            for (int x = 0; x < image.getWidth(); x++) {
+                labelRow[x] = (red[y][x] + green[y][x] + blue[y][x]) / 3;
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * Labels the connected components of a segmented image
+     * @param labels The label image
+     * @return The second largest component, the person
+     */
+    public static ConnectedComponent findPerson(FImage labels) {
+        // Get the person component
+        return findComponents(labels).get(1);
+    }
+
+    /**
+     * Labels the connected components of a segmented image
+     * @param labels The label image
+     * @return The components, largest first, fewer than two when there is no person
+     */
+    public static List<ConnectedComponent> findComponents(FImage labels) {
+        GreyscaleConnectedComponentLabeler labeler = new GreyscaleConnectedComponentLabeler();
+        List<ConnectedComponent> components = labeler.findComponents(labels);
+        components.sort(Comparator.comparingInt(PixelSet::calculateArea));
+        Collections.reverse(components);
+        return components;
+    }
+
+    /**
+     * @return True if findPerson draws over the image it is given
+     */
+    public boolean drawsOverImage() {
+        return mode == Mode.FULL;
+    }
+
+    /**
+     * Clusters a downsampled copy of the region and upsamples the cluster labels, outside the region takes the
+     * label most common along the region's border
+     * @param image The cropped image
+     * @param labels The label image to fill
+     * @return The label image, one grey level per cluster
+     */
+    private FImage clusterLabels(MBFImage image, FImage labels) {
+        int[] region = region(image);
+        int x0 = region[0], y0 = region[1], width = region[2], height = region[3];
+        int lowWidth = (width + scale - 1) / scale, lowHeight = (height + scale - 1) / scale;
+        float[][] features = features(image, x0, y0, width, height);
+
+        int[] lowLabels = new int[features.length];
+        assign(centroidsFor(features), features, lowLabels);
+
+        // Background is the most common label on the region border
+        int[] borderCounts = new int[K];
+        for (int bx = 0; bx < lowWidth; bx++) {
+            borderCounts[lowLabels[bx]]++;
+            borderCounts[lowLabels[((lowHeight - 1) * lowWidth) + bx]]++;
+        }
+        for (int by = 0; by < lowHeight; by++) {
+            borderCounts[lowLabels[by * lowWidth]]++;
+            borderCounts[lowLabels[(by * lowWidth) + lowWidth - 1]]++;
+        }
+        int background = borderCounts[0] >= borderCounts[1] ? 0 : 1;
+
+        // Upsample the labels to the full image
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int label = background;
+                if (x >= x0 && x < x0 + width && y >= y0 && y < y0 + height) {
+                    label = lowLabels[(((y - y0) / scale) * lowWidth) + ((x - x0) / scale)];
+                }
+                labels.pixels[y][x] = (label + 1f) / K;
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * @param image The cropped image
+     * @return The region segmented as x, y, width and height, clipped to the image
+     * @throws IllegalArgumentException If the region does not overlap the image
+     */
+    private int[] region(MBFImage image) {
+        if (roi == null) {
+            return new int[]{0, 0, image.getWidth(), image.getHeight()};
+        }
+        int x0 = Math.max(0, (int) roi.x), y0 = Math.max(0, (int) roi.y);
+        int width = Math.min(image.getWidth(), (int) (roi.x + roi.width)) - x0;
+        int height = Math.min(image.getHeight(), (int) (roi.y + roi.height)) - y0;
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("The segmentation region " + roi.x + "," + roi.y + "," + roi.width + ","
+                    + roi.height + " does not overlap the " + image.getWidth() + "x" + image.getHeight() + " crop");
+        }
+        return new int[]{x0, y0, width, height};
+    }
+
+    /**
+     * Averages each scale x scale block of the region and describes it by its Lab colour and position
+     * @param image The cropped image
+     * @param x0 The region's left edge
+     * @param y0 The region's top edge
+     * @param width The region width
+     * @param height The region height
+     * @return The block features, row-major
+     */
+    private float[][] features(MBFImage image, int x0, int y0, int width, int height) {
+        // Average each scale x scale block of the region
+        int lowWidth = (width + scale - 1) / scale, lowHeight = (height + scale - 1) / scale;
+        MBFImage low = new MBFImage(lowWidth, lowHeight, ColourSpace.RGB);
+        for (int band = 0; band < 3; band++) {
+            float[][] source = image.getBand(band).pixels, target = low.getBand(band).pixels;
+            for (int by = 0; by < lowHeight; by++) {
+                for (int bx = 0; bx < lowWidth; bx++) {
+                    float sum = 0;
+                    int count = 0;
+                    for (int y = y0 + (by * scale); y < Math.min(y0 + height, y0 + ((by + 1) * scale)); y++) {
+                        for (int x = x0 + (bx * scale); x < Math.min(x0 + width, x0 + ((bx + 1) * scale)); x++) {
+                            sum += source[y][x];
+                            count++;
+                        }
+                    }
+                    target[by][bx] = sum / count;
+                }
+            }
+        }
+
+        // Lab colour and position features
+        MBFImage lab = ColourSpace.CIE_Lab.convertFromRGB(low);
+        float[][] features = new float[lowWidth * lowHeight][5];
+        for (int by = 0; by < lowHeight; by++) {
+            for (int bx = 0; bx < lowWidth; bx++) {
+                float[] feature = features[(by * lowWidth) + bx];
+                feature[0] = lab.getBand(0).pixels[by][bx] * COLOUR_SCALE;
+                feature[1] = lab.getBand(1).pixels[by][bx] * COLOUR_SCALE;
+                feature[2] = lab.getBand(2).pixels[by][bx] * COLOUR_SCALE;
+                feature[3] = ((float) bx / lowWidth) * SPATIAL_WEIGHT;
+                feature[4] = ((float) by / lowHeight) * SPATIAL_WEIGHT;
+            }
+        }
+        return features;
+    }
+
+    /**
+     * In CENTROIDS mode the centroids learnt from the reference image are reused, otherwise they are learnt per image
+     * @param features The pixel features
+     * @return The centroids
+     */
+    private float[][] centroidsFor(float[][] features) {
+        if (mode != Mode.CENTROIDS) {
+            return kMeans(features);
+        }
+        float[][] learnt = centroids;
+        if (learnt == null) {
+            throw new IllegalStateException("The CENTROIDS mode segments only after learnCentroids");
+        }
+        return learnt;
+    }
+
+    /**
+     * @return True in CENTROIDS mode until the centroids are learnt
+     */
+    public boolean needsCentroids() {
+        return mode == Mode.CENTROIDS && centroids == null;
+    }
+
+    /**
+     * Learns the CENTROIDS mode centroids from the reference image, before any image is segmented so every image
+     * uses the same centroids whatever order the workers take them in. Does nothing once learnt or in other modes
+     * @param image The cropped reference image
+     */
+    public synchronized void learnCentroids(MBFImage image) {
+        if (needsCentroids()) {
+            int[] region = region(image);
+            centroids = kMeans(features(image, region[0], region[1], region[2], region[3]));
+        }
+    }
+
+    /**
+     * Lloyd's k-means, starting from the first feature and the feature furthest from it
+     * @param features The pixel features
+     * @return The centroids
+     */
+    private static float[][] kMeans(float[][] features) {
+        float[][] centroids = new float[K][];
+        centroids[0] = features[0].clone();
+        int furthest = 0;
+        for (int i = 1; i < features.length; i++) {
+            if (distance(features[i], centroids[0]) > distance(features[furthest], centroids[0])) {
+                furthest = i;
+            }
+        }
+        centroids[1] = features[furthest].clone();
+
+        int[] labels = new int[features.length];
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            boolean changed = assign(centroids, features, labels) || iteration == 0;
+
+            // Move each centroid to the mean of its features
+            float[][] sums = new float[K][features[0].length];
+            int[] counts = new int[K];
+            for (int i = 0; i < features.length; i++) {
+                for (int d = 0; d < features[i].length; d++) {
+                    sums[labels[i]][d] += features[i][d];
+                }
+                counts[labels[i]]++;
+            }
+            for (int k = 0; k < K; k++) {
+                if (counts[k] > 0) {
+                    for (int d = 0; d < sums[k].length; d++) {
+                        centroids[k][d] = sums[k][d] / counts[k];
+                    }
+                }
+            }
+
+            if (!changed) {
+                break;
+            }
+        }
+        return centroids;
+    }
+
+    /**
+     * Assigns each feature to its nearest centroid
+     * @return True if any label changed
+     */
+    private static boolean assign(float[][] centroids, float[][] features, int[] labels) {
+        boolean changed = false;
+        for (int i = 0; i < features.length; i++) {
+            int nearest = 0;
+            for (int k = 1; k < centroids.length; k++) {
+                if (distance(features[i], centroids[k]) < distance(features[i], centroids[nearest])) {
+                    nearest = k;
+                }
+            }
+            if (labels[i] != nearest) {
+                labels[i] = nearest;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return The squared distance between two features
+     */
+    private static float distance(float[] a, float[] b) {
+        float sum = 0;
+        for (int d = 0; d < a.length; d++) {
+            float diff = a[d] - b[d];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    /**
+     * @return The region segmented by the fast modes, or null for the whole image
+     */
+    public Rectangle getRoi() {
+        return roi;
+    }
+
+    /**
+     * @return The segmentation config for feature store fingerprints
+     */
+    @Override
+    public String toString() {
+        if (mode == Mode.FULL) {
+            return "segmentation=full";
+        }
+        return "segmentation=" + mode.name().toLowerCase() + "," + scale
+                + (roi == null ? "" : "," + roi.x + "," + roi.y + "," + roi.width + "," + roi.height)
+                + (mode == Mode.CENTROIDS ? ",reference=" + reference : "");
+    }
+
+    /**
+     * The segmentation strategies
+     */
+    public enum Mode {
+        FULL, // k-means over every pixel of the crop
+        DOWNSAMPLED, // k-means over block averages, labels upsampled
+        CENTROIDS // centroids learnt once from a downsampled reference image and reused for every image
+    }
+}
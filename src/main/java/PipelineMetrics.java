@@ -0,0 +1,133 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class PipelineMetrics {
+    private final Map<String, LatencyHistogram> stages = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final long startTime = System.nanoTime();
+
+    /**
+     * Records the time since a stage started, chain the returned time into the next stage
+     * @param stage The stage name
+     * @param startNanos The stage start from System.nanoTime()
+     * @return The current System.nanoTime()
+     */
+    public long record(String stage, long startNanos) {
+        long now = System.nanoTime();
+        stage(stage).record(now - startNanos);
+        return now;
+    }
+
+    /**
+     * @param stage The stage name
+     * @return The stage's latency histogram
+     */
+    public LatencyHistogram stage(String stage) {
+        LatencyHistogram histogram = stages.get(stage);
+        return histogram != null ? histogram : stages.computeIfAbsent(stage, name -> new LatencyHistogram());
+    }
+
+    /**
+     * @param counter The counter name
+     * @param amount The amount to add
+     */
+    public void increment(String counter, long amount) {
+        counters.computeIfAbsent(counter, name -> new LongAdder()).add(amount);
+    }
+
+    /**
+     * @param counter The counter name
+     * @return The counter's value
+     */
+    public long getCount(String counter) {
+        LongAdder adder = counters.get(counter);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    /**
+     * @return The stages with their count, throughput, mean and p50, p90, p99 latencies and the counters as JSON
+     */
+    public String toJson() {
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        StringBuilder json = new StringBuilder("{\n  \"uptimeSeconds\": " + jsonNumber(seconds) + ",\n  \"stages\": {");
+        String separator = "\n";
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(stages).entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            long count = histogram.getCount();
+            json.append(separator).append("    \"").append(entry.getKey()).append("\": {\"count\": ").append(count)
+                    .append(", \"perSecond\": ").append(jsonNumber(count / seconds))
+                    .append(", \"meanMs\": ").append(jsonNumber(count == 0 ? 0 : histogram.getSumNanos() / 1e6 / count))
+                    .append(", \"p50Ms\": ").append(jsonNumber(histogram.percentile(50)))
+                    .append(", \"p90Ms\": ").append(jsonNumber(histogram.percentile(90)))
+                    .append(", \"p99Ms\": ").append(jsonNumber(histogram.percentile(99))).append("}");
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"counters\": {");
+        separator = "\n";
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            json.append(separator).append("    \"").append(entry.getKey()).append("\": ").append(entry.getValue().sum());
+            separator = ",\n";
+        }
+        return json.append("\n  }\n}\n").toString();
+    }
+
+    /**
+     * @return The stage histograms in seconds and the counters in the Prometheus text format
+     */
+    public String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        text.append("# TYPE biometrics_stage_seconds histogram\n");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(stages).entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            String stage = "stage=\"" + entry.getKey() + "\"";
+            long cumulative = 0;
+            for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+                cumulative += histogram.getBucketCount(i);
+                double bound = LatencyHistogram.upperBound(i);
+                text.append("biometrics_stage_seconds_bucket{").append(stage).append(",le=\"")
+                        .append(Double.isInfinite(bound) ? "+Inf" : format(bound / 1e9)).append("\"} ").append(cumulative).append("\n");
+            }
+            text.append("biometrics_stage_seconds_sum{").append(stage).append("} ").append(format(histogram.getSumNanos() / 1e9)).append("\n");
+            text.append("biometrics_stage_seconds_count{").append(stage).append("} ").append(histogram.getCount()).append("\n");
+        }
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            String name = "biometrics_" + entry.getKey().replaceAll("([a-z])([A-Z])", "$1_$2").toLowerCase(Locale.ROOT) + "_total";
+            text.append("# TYPE ").append(name).append(" counter\n");
+            text.append(name).append(" ").append(entry.getValue().sum()).append("\n");
+        }
+        return text.toString();
+    }
+
+    /**
+     * Writes metrics.json and metrics.prom
+     * @param directory The directory, next to the results
+     */
+    public void write(String directory) throws IOException {
+        try (FileWriter fileWriter = new FileWriter(new File(directory + "metrics.json"))) {
+            fileWriter.write(toJson());
+        }
+        try (FileWriter fileWriter = new FileWriter(new File(directory + "metrics.prom"))) {
+            fileWriter.write(toPrometheus());
+        }
+    }
+
+    /**
+     * @return The value as formatted, or null as JSON has no infinity, for percentiles in the overflow bucket
+     */
+    private static String jsonNumber(double value) {
+        return Double.isFinite(value) ? format(value) : "null";
+    }
+
+    /**
+     * @return The value without a locale or exponent
+     */
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+}
@@ -0,0 +1,204 @@
+import ai.djl.inference.Predictor;
+import ai.djl.modality.cv.Image;
+import ai.djl.modality.cv.output.Joints;
+import ai.djl.repository.zoo.ZooModel;
+import ai.djl.translate.TranslateException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class PoseBatcher implements PoseEstimator, AutoCloseable {
+    private final BatchEstimator estimator;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final BlockingQueue<PoseRequest> queue;
+    private final Thread worker;
+    private final ReadWriteLock closing = new ReentrantReadWriteLock();
+    private volatile boolean running = true;
+
+    /**
+     * Groups pending images into batches for one predictor. A batch runs once it is full or the first image in it
+     * has waited for the maximum wait time
+     * @param model The pose estimation model
+     * @param maxBatchSize The maximum batch size
+     * @param maxWaitMillis The maximum time an image waits for the batch to fill
+     */
+    public PoseBatcher(ZooModel<Image, Joints> model, int maxBatchSize, long maxWaitMillis) {
+        this(fromPredictor(model.newPredictor()), maxBatchSize, maxWaitMillis);
+    }
+
+    /**
+     * Groups pending images into batches for an estimator
+     * @param estimator Runs a batch, closed with the batcher
+     * @param maxBatchSize The maximum batch size
+     * @param maxWaitMillis The maximum time an image waits for the batch to fill
+     */
+    PoseBatcher(BatchEstimator estimator, int maxBatchSize, long maxWaitMillis) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        this.estimator = estimator;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.queue = new ArrayBlockingQueue<>(maxBatchSize * 4);
+        this.worker = new Thread(this::run, "pose-batcher");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Queues an image, blocks while the queue is full. The check and the enqueue hold the read lock, so close cannot
+     * stop the worker between them
+     * @param image The image
+     * @return The joints once the image's batch has run
+     */
+    public CompletableFuture<Joints> submit(Image image) throws InterruptedException {
+        closing.readLock().lockInterruptibly();
+        try {
+            if (!running) {
+                throw new IllegalStateException("Pose batcher is closed");
+            }
+            PoseRequest request = new PoseRequest(image, new CompletableFuture<>());
+            queue.put(request);
+            return request.joints();
+        } finally {
+            closing.readLock().unlock();
+        }
+    }
+
+    /**
+     * Queues an image and waits for its joints
+     */
+    @Override
+    public Joints predict(Image image) throws TranslateException {
+        try {
+            return submit(image).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TranslateException("Interrupted while waiting for pose estimation", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TranslateException cause) {
+                throw cause;
+            }
+            throw new TranslateException(e.getCause());
+        }
+    }
+
+    /**
+     * Collects and runs batches until closed and drained
+     */
+    private void run() {
+        List<PoseRequest> batch = new ArrayList<>(maxBatchSize);
+        List<Image> images = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PoseRequest first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                // Fill the batch until it is full or the first image has waited long enough
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < maxBatchSize) {
+                    PoseRequest next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+
+            for (PoseRequest request : batch) {
+                images.add(request.image());
+            }
+            try {
+                List<Joints> joints = estimator.batchPredict(images);
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).joints().complete(joints.get(i));
+                }
+            } catch (Exception e) {
+                for (PoseRequest request : batch) {
+                    request.joints().completeExceptionally(e);
+                }
+            }
+            batch.clear();
+            images.clear();
+        }
+    }
+
+    /**
+     * Runs the remaining queued images and releases the predictor. Requests the worker did not run, as it was
+     * interrupted, fail
+     */
+    @Override
+    public void close() {
+        closing.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            closing.writeLock().unlock();
+        }
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        PoseRequest request;
+        while ((request = queue.poll()) != null) {
+            request.joints().completeExceptionally(new IllegalStateException("Pose batcher is closed"));
+        }
+        estimator.close();
+    }
+
+    /**
+     * @param predictor The predictor
+     * @return An estimator running batches on the predictor
+     */
+    private static BatchEstimator fromPredictor(Predictor<Image, Joints> predictor) {
+        return new BatchEstimator() {
+            @Override
+            public List<Joints> batchPredict(List<Image> images) throws TranslateException {
+                return predictor.batchPredict(images);
+            }
+
+            @Override
+            public void close() {
+                predictor.close();
+            }
+        };
+    }
+
+    /**
+     * Runs a batch of pose estimations
+     */
+    interface BatchEstimator extends AutoCloseable {
+        /**
+         * @param images The images
+         * @return The joints of each image, in order
+         */
+        List<Joints> batchPredict(List<Image> images) throws TranslateException;
+
+        @Override
+        void close();
+    }
+
+    /**
+     * A record to represent an image waiting for pose estimation
+     * @param image
+     * @param joints
+     */
+    private record PoseRequest(Image image, CompletableFuture<Joints> joints) { }
+}
@@ -0,0 +1,12 @@
+import ai.djl.modality.cv.Image;
+import ai.djl.modality.cv.output.Joints;
+import ai.djl.translate.TranslateException;
+
+public interface PoseEstimator {
+    /**
+     * Estimates the joints in an image
+     * @param image The image
+     * @return The joints
+     */
+    Joints predict(Image image) throws TranslateException;
+}
@@ -0,0 +1,174 @@
+import ai.djl.modality.cv.Image;
+import ai.djl.modality.cv.output.Joints;
+import ai.djl.repository.zoo.ZooModel;
+import org.openimaj.data.dataset.VFSListDataset;
+import org.openimaj.feature.FeatureVector;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.MBFImage;
+import org.openimaj.ml.pca.FeatureVectorPCA;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class PrecisionReport {
+    /**
+     * Compares the float32 and int8 galleries against the double baseline. On the biometrics dataset it reports the
+     * CCR and EER of each precision, which needs the pose model and is skipped without it. On a synthetic gallery
+     * (-Dsize, -Ddimensions, -Dqueries) it reports the bytes per row, scan time and how often the nearest row agrees
+     * with the double gallery's. Run with --add-modules jdk.incubator.vector for the vector kernels, for exec:java
+     * through MAVEN_OPTS as it runs in Maven's JVM
+     */
+    public static void main(String[] args) throws Exception {
+        StringBuilder report = new StringBuilder("Kernels: " + (DistanceKernels.VECTOR_API ? "Vector API" : "scalar") + "\n\n");
+        try {
+            datasetAccuracy(report);
+        } catch (Exception e) {
+            report.append("Dataset comparison skipped, ").append(e).append("\n");
+        }
+        report.append("\n");
+        syntheticScan(report);
+
+        File reportFile = new File(Main.PATH + "precision-report.txt");
+        FileWriter fileWriter = new FileWriter(reportFile);
+        fileWriter.write(report.toString());
+        fileWriter.close();
+
+        System.out.print(report);
+    }
+
+    /**
+     * CCR and EER of each precision, computed the same way as Main with the stored FVs reused
+     */
+    private static void datasetAccuracy(StringBuilder report) throws Exception {
+        Float[][] temperatures = new Float[48][];
+        Main.generateTemperatures(temperatures);
+        PersonSegmenter segmenter = PersonSegmenter.fromProperties();
+        List<PersonFV> trainingFVs, testingFVs;
+        try (ZooModel<Image, Joints> model = Main.loadModel();
+             FeatureStore store = new FeatureStore(new File(Main.PATH + "features"), PersonFV.CONFIG + ";" + segmenter, PersonFV.FEATURE_LENGTH);
+             FeatureExtractor extractor = new FeatureExtractor(model, Runtime.getRuntime().availableProcessors(), null, null, segmenter, store, temperatures, new PipelineMetrics())) {
+            trainingFVs = extractor.extract(new VFSListDataset<>(Main.PATH + "biometrics\\training", ImageUtilities.MBFIMAGE_READER), true);
+            testingFVs = extractor.extract(new VFSListDataset<>(Main.PATH + "biometrics\\testing", ImageUtilities.MBFIMAGE_READER), false);
+        }
+
+        List<FeatureVector> FVs = new ArrayList<>();
+        for (PersonFV trainingFV : trainingFVs) {
+            FVs.add(trainingFV.getExtractedFeature());
+        }
+        FeatureVectorPCA pca = new FeatureVectorPCA();
+        pca.learnBasis(FVs);
+
+        report.append(String.format("%-8s %10s %10s %18s%n", "Rows", "CCR (%)", "EER (%)", "Max distance error"));
+        double[] baselineDistances = null;
+        for (QuantizedGallery.Precision precision : QuantizedGallery.Precision.values()) {
+            IdentificationEngine engine = new IdentificationEngine(pca, trainingFVs, precision);
+
+            float correctCount = 0f;
+            for (PersonFV testingFV : testingFVs) {
+                IdentificationEngine.Match nearest = engine.query(testingFV.getExtractedFeature(), 1).nearest();
+                if (nearest != null && Main.classificationCheck(testingFV.getId(), nearest.id())) {
+                    correctCount += 1f;
+                }
+            }
+
+            // Every training pair, an exact probe against the stored row
+            int size = trainingFVs.size();
+            double[] distances = new double[size], allDistances = new double[(size * (size - 1)) / 2];
+            List<Double> interDistances = new ArrayList<>(), intraDistances = new ArrayList<>();
+            int pair = 0;
+            for (int i = 0; i < size; i++) {
+                engine.distances(engine.project(trainingFVs.get(i).getExtractedFeature()), distances);
+                for (int j = i + 1; j < size; j++) {
+                    allDistances[pair++] = distances[j];
+                    if (Main.verificationCheck(trainingFVs.get(i).getId(), trainingFVs.get(j).getId())) {
+                        interDistances.add(distances[j]);
+                    } else {
+                        intraDistances.add(distances[j]);
+                    }
+                }
+            }
+            VerificationMetrics metrics = new VerificationMetrics(interDistances.stream().mapToDouble(Double::doubleValue).toArray(),
+                    intraDistances.stream().mapToDouble(Double::doubleValue).toArray());
+
+            double maxError = 0;
+            if (baselineDistances == null) {
+                baselineDistances = allDistances;
+            }
+            for (int i = 0; i < allDistances.length; i++) {
+                maxError = Math.max(maxError, Math.abs(allDistances[i] - baselineDistances[i]));
+            }
+            report.append(String.format("%-8s %10.3f %10.3f %18.3g%n", precision, (correctCount / 22f) * 100f, metrics.getEER() * 100, maxError));
+        }
+    }
+
+    /**
+     * Bytes per row, mean scan time and nearest row agreement with double of each precision over a synthetic PCA-like
+     * gallery
+     */
+    private static void syntheticScan(StringBuilder report) {
+        int size = Integer.getInteger("size", 100000);
+        int dimensions = Integer.getInteger("dimensions", 64);
+        int queries = Integer.getInteger("queries", 50);
+        Random random = new Random(42);
+
+        double[] rows = new double[size * dimensions];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = random.nextGaussian() / Math.sqrt((i % dimensions) + 1);
+        }
+        double[][] probes = new double[queries][dimensions];
+        for (double[] probe : probes) {
+            for (int d = 0; d < dimensions; d++) {
+                probe[d] = random.nextGaussian() / Math.sqrt(d + 1);
+            }
+        }
+
+        report.append("Gallery: ").append(size).append(" rows, ").append(dimensions).append(" dimensions, ")
+                .append(queries).append(" queries\n");
+        report.append(String.format("%-8s %10s %10s %12s %14s%n", "Rows", "Bytes/row", "Size (MB)", "Scan (ms)", "Top-1 agree (%)"));
+        double[] distances = new double[size];
+        int[] baselineNearest = new int[queries];
+        for (QuantizedGallery.Precision precision : QuantizedGallery.Precision.values()) {
+            QuantizedGallery gallery = precision == QuantizedGallery.Precision.DOUBLE ? null : new QuantizedGallery(precision, rows, size, dimensions);
+            int rowBytes = gallery == null ? dimensions * Double.BYTES : gallery.getRowBytes();
+
+            // Warm up, then time every probe
+            long totalNanos = 0;
+            int agreed = 0;
+            for (int run = 0; run < 2; run++) {
+                totalNanos = 0;
+                agreed = 0;
+                for (int q = 0; q < queries; q++) {
+                    double[] probe = probes[q];
+                    long startTime = System.nanoTime();
+                    if (gallery == null) {
+                        for (int i = 0; i < size; i++) {
+                            distances[i] = GalleryIndex.distance(rows, i, dimensions, probe);
+                        }
+                    } else {
+                        gallery.distances(probe, distances);
+                    }
+                    totalNanos += System.nanoTime() - startTime;
+
+                    // Nearest row, the double gallery's is the baseline
+                    int nearest = 0;
+                    for (int i = 1; i < size; i++) {
+                        if (distances[i] < distances[nearest]) {
+                            nearest = i;
+                        }
+                    }
+                    if (gallery == null) {
+                        baselineNearest[q] = nearest;
+                    }
+                    if (nearest == baselineNearest[q]) {
+                        agreed++;
+                    }
+                }
+            }
+            report.append(String.format("%-8s %10d %10.1f %12.3f %14.1f%n", precision, rowBytes, ((double) rowBytes * size) / (1 << 20), totalNanos / 1e6 / queries, (agreed * 100.0) / queries));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+import java.util.Arrays;
+
+public class QuantizedGallery {
+    private final Precision precision;
+    private final int dimensions;
+    private final float[] minimums, steps, weights;
+    private float[] floatRows;
+    private byte[] byteRows;
+    private int size, capacity;
+
+    /**
+     * Stores projected rows as float32 or int8. The int8 codes use a step per dimension over the range of the
+     * initial rows, later rows outside it are clamped. Distances are from an exact probe to the stored rows
+     * @param precision FLOAT or INT8
+     * @param rows The initial row-major rows
+     * @param count The number of initial rows
+     * @param dimensions The row length
+     */
+    public QuantizedGallery(Precision precision, double[] rows, int count, int dimensions) {
+        if (precision == Precision.DOUBLE) {
+            throw new IllegalArgumentException("DOUBLE rows are not quantized");
+        }
+        this.precision = precision;
+        this.dimensions = dimensions;
+        this.capacity = Math.max(count, 16);
+        this.minimums = new float[dimensions];
+        this.steps = new float[dimensions];
+        this.weights = new float[dimensions];
+
+        if (precision == Precision.FLOAT) {
+            floatRows = new float[capacity * dimensions];
+        } else {
+            byteRows = new byte[capacity * dimensions];
+
+            // Range of each dimension, [-1, 1] without rows
+            for (int d = 0; d < dimensions; d++) {
+                double minimum = count == 0 ? -1 : Double.POSITIVE_INFINITY, maximum = count == 0 ? 1 : Double.NEGATIVE_INFINITY;
+                for (int i = 0; i < count; i++) {
+                    minimum = Math.min(minimum, rows[(i * dimensions) + d]);
+                    maximum = Math.max(maximum, rows[(i * dimensions) + d]);
+                }
+                minimums[d] = (float) minimum;
+                steps[d] = maximum > minimum ? (float) ((maximum - minimum) / 255) : 1;
+                weights[d] = steps[d] * steps[d];
+            }
+        }
+
+        double[] row = new double[dimensions];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(rows, i * dimensions, row, 0, dimensions);
+            append(row);
+        }
+    }
+
+    /**
+     * Appends a row, growing the storage when full
+     * @param row The projected row
+     */
+    public void append(double[] row) {
+        if (size == capacity) {
+            capacity *= 2;
+            if (floatRows != null) {
+                floatRows = Arrays.copyOf(floatRows, capacity * dimensions);
+            } else {
+                byteRows = Arrays.copyOf(byteRows, capacity * dimensions);
+            }
+        }
+        int offset = size * dimensions;
+        for (int d = 0; d < dimensions; d++) {
+            if (floatRows != null) {
+                floatRows[offset + d] = (float) row[d];
+            } else {
+                long code = Math.round((row[d] - minimums[d]) / steps[d]);
+                byteRows[offset + d] = (byte) (Math.max(0, Math.min(255, code)) - 128);
+            }
+        }
+        size++;
+    }
+
+    /**
+     * Euclidean distances from a probe to every row
+     * @param probe The projected probe
+     * @param distances The output, one distance per row
+     */
+    public void distances(double[] probe, double[] distances) {
+        float[] converted = new float[dimensions];
+        for (int d = 0; d < dimensions; d++) {
+            converted[d] = floatRows != null ? (float) probe[d] : (float) ((probe[d] - minimums[d]) / steps[d]) - 128;
+        }
+
+        for (int i = 0; i < size; i++) {
+            float sum = floatRows != null
+                    ? DistanceKernels.squaredDistance(converted, floatRows, i * dimensions, dimensions)
+                    : DistanceKernels.squaredDistance(converted, weights, byteRows, i * dimensions, dimensions);
+            distances[i] = Math.sqrt(sum);
+        }
+    }
+
+    /**
+     * @param row The row
+     * @param out The row's stored values as doubles
+     */
+    public void decode(int row, double[] out) {
+        int offset = row * dimensions;
+        for (int d = 0; d < dimensions; d++) {
+            out[d] = floatRows != null ? floatRows[offset + d] : minimums[d] + (steps[d] * (byteRows[offset + d] + 128));
+        }
+    }
+
+    /**
+     * @return The number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The bytes stored per row
+     */
+    public int getRowBytes() {
+        return dimensions * (precision == Precision.FLOAT ? Float.BYTES : Byte.BYTES);
+    }
+
+    /**
+     * The gallery row precisions
+     */
+    public enum Precision {
+        DOUBLE, // 8 bytes per dimension, the exact baseline
+        FLOAT, // 4 bytes per dimension
+        INT8; // 1 byte per dimension, a step per dimension
+
+        /**
+         * @return The precision from -DgalleryPrecision=double|float|int8, double by default
+         */
+        public static Precision fromProperties() {
+            return valueOf(System.getProperty("galleryPrecision", "double").toUpperCase());
+        }
+    }
+}
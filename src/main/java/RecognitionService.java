@@ -0,0 +1,402 @@
+import ai.djl.inference.Predictor;
+import ai.djl.modality.cv.Image;
+import ai.djl.modality.cv.output.Joints;
+import ai.djl.repository.zoo.ZooModel;
+import ai.djl.translate.TranslateException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.openimaj.data.dataset.VFSListDataset;
+import org.openimaj.feature.FeatureVector;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.MBFImage;
+import org.openimaj.ml.pca.FeatureVectorPCA;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class RecognitionService implements AutoCloseable {
+    private final BlockingQueue<Predictor<Image, Joints>> predictors;
+    private final PoseBatcher batcher;
+    private final PersonSegmenter segmenter;
+    private final Float[][] temperatures;
+    private final IdentificationEngine engine;
+    private final PipelineMetrics metrics;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Integer, String> subjects = new HashMap<>();
+    private final LatencyStats enrollStats = new LatencyStats(1024), identifyStats = new LatencyStats(1024);
+    private int nextId = 1;
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+
+    /**
+     * Creates a resident service with the predictors, PCA basis and projected gallery kept warm. With
+     * -DincrementalPca=true enrollment updates the basis and migrates -DmigrationBatch rows per enrollment
+     * @param model The pose estimation model
+     * @param predictorCount The number of predictors, which bounds the concurrent extractions
+     * @param batcher The pose batcher shared by concurrent requests, or null to use the predictors
+     * @param segmenter The person segmenter
+     * @param galleryFVs The initial gallery FVs, used to learn the PCA basis
+     * @param temperatures The list of colours
+     * @param metrics The stage timings and counters
+     */
+    public RecognitionService(ZooModel<Image, Joints> model, int predictorCount, PoseBatcher batcher, PersonSegmenter segmenter, List<PersonFV> galleryFVs, Float[][] temperatures, PipelineMetrics metrics) {
+        this.temperatures = temperatures;
+        this.metrics = metrics;
+        this.batcher = batcher;
+        this.segmenter = segmenter;
+
+        // Learning PCA basis
+        List<FeatureVector> FVs = new ArrayList<>();
+        for (PersonFV galleryFV : galleryFVs) {
+            FVs.add(galleryFV.getExtractedFeature());
+            nextId = Math.max(nextId, galleryFV.getId() + 1);
+        }
+        if (Boolean.getBoolean("incrementalPca")) {
+            this.engine = new IdentificationEngine(IncrementalPCA.fromProperties(FVs), galleryFVs, Integer.getInteger("migrationBatch", 32));
+        } else {
+            FeatureVectorPCA pca = new FeatureVectorPCA();
+            pca.learnBasis(FVs);
+            this.engine = new IdentificationEngine(pca, galleryFVs, QuantizedGallery.Precision.fromProperties());
+        }
+
+        // Without the batcher each concurrent extraction borrows its own predictor
+        this.predictors = new ArrayBlockingQueue<>(predictorCount);
+        for (int i = 0; batcher == null && i < predictorCount; i++) {
+            predictors.add(model.newPredictor());
+        }
+    }
+
+    /**
+     * Extracts a FV and adds it to the gallery
+     * @param image The image
+     * @param subject The subject label, or null
+     * @return The new gallery id
+     */
+    public int enroll(MBFImage image, String subject) throws IOException, TranslateException {
+        long startTime = System.nanoTime();
+        PersonFV personFV = extract(image);
+
+        int id;
+        long enrollStart = System.nanoTime();
+        lock.writeLock().lock();
+        try {
+            id = nextId++;
+            engine.enroll(id, personFV.getExtractedFeature());
+            if (subject != null) {
+                subjects.put(id, subject);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        metrics.record("enrollment", enrollStart);
+        enrollStats.record(System.nanoTime() - startTime);
+        return id;
+    }
+
+    /**
+     * Finds the k nearest gallery FVs to an image
+     * @param image The image
+     * @param k The number of matches
+     * @return The matches and the nearest and furthest distances
+     */
+    public IdentificationEngine.QueryResult identify(MBFImage image, int k) throws IOException, TranslateException {
+        long startTime = System.nanoTime();
+        PersonFV personFV = extract(image);
+
+        IdentificationEngine.QueryResult result;
+        long matchingStart = System.nanoTime();
+        lock.readLock().lock();
+        try {
+            result = engine.query(personFV.getExtractedFeature(), k);
+        } finally {
+            lock.readLock().unlock();
+        }
+        metrics.record("matching", matchingStart);
+        identifyStats.record(System.nanoTime() - startTime);
+        return result;
+    }
+
+    /**
+     * Extracts a FV with the batcher or a borrowed predictor
+     * @param image The image
+     * @return The FV
+     */
+    private PersonFV extract(MBFImage image) throws IOException, TranslateException {
+        if (batcher != null) {
+            return new PersonFV(0, image, false, null, segmenter, batcher, temperatures, metrics);
+        }
+
+        Predictor<Image, Joints> predictor;
+        try {
+            predictor = predictors.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a predictor", e);
+        }
+        try {
+            return new PersonFV(0, image, false, null, segmenter, predictor::predict, temperatures, metrics);
+        } finally {
+            predictors.add(predictor);
+        }
+    }
+
+    /**
+     * @param id The gallery id
+     * @return The subject label, or null if it was enrolled without one
+     */
+    public String getSubject(int id) {
+        lock.readLock().lock();
+        try {
+            return subjects.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The number of gallery FVs
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return engine.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The enrollment latencies
+     */
+    public LatencyStats getEnrollStats() {
+        return enrollStats;
+    }
+
+    /**
+     * @return The identification latencies
+     */
+    public LatencyStats getIdentifyStats() {
+        return identifyStats;
+    }
+
+    /**
+     * Serves the API on the loopback interface. POST /enroll?subject=name and POST /identify?k=5 take the image as the
+     * request body, GET /stats returns the latency percentiles and GET /metrics the stage metrics as Prometheus text
+     * @param port The port
+     * @param threads The number of request threads
+     */
+    public void start(int port, int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        serverExecutor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(serverExecutor);
+
+        server.createContext("/enroll", exchange -> handle(exchange, "POST", () -> {
+            String subject = query(exchange.getRequestURI()).get("subject");
+            int id = enroll(readImage(exchange), subject);
+            return "{\"id\": " + id + ", \"subject\": " + jsonString(subject) + ", \"gallerySize\": " + size() + "}";
+        }));
+        server.createContext("/identify", exchange -> handle(exchange, "POST", () -> {
+            int k = Integer.parseInt(query(exchange.getRequestURI()).getOrDefault("k", "1"));
+            return toJson(identify(readImage(exchange), k));
+        }));
+        server.createContext("/stats", exchange -> handle(exchange, "GET", () ->
+                "{\"gallerySize\": " + size() + ", \"enroll\": " + enrollStats.toJson() + ", \"identify\": " + identifyStats.toJson() + "}"));
+        server.createContext("/metrics", exchange -> handle(exchange, "GET", "text/plain; version=0.0.4", metrics::toPrometheus));
+        server.start();
+    }
+
+    /**
+     * @param result The query result
+     * @return The matches with their subjects and the nearest and furthest distances as JSON
+     */
+    public String toJson(IdentificationEngine.QueryResult result) {
+        StringBuilder json = new StringBuilder("{\"matches\": [");
+        for (int i = 0; i < result.matches().size(); i++) {
+            IdentificationEngine.Match match = result.matches().get(i);
+            json.append(i == 0 ? "" : ", ")
+                    .append("{\"id\": ").append(match.id())
+                    .append(", \"subject\": ").append(jsonString(getSubject(match.id())))
+                    .append(", \"distance\": ").append(jsonNumber(match.distance())).append("}");
+        }
+        return json.append("], \"nearestDistance\": ").append(jsonNumber(result.nearestDistance()))
+                .append(", \"furthestDistance\": ").append(jsonNumber(result.furthestDistance())).append("}").toString();
+    }
+
+    /**
+     * Runs a request handler and writes its JSON response
+     */
+    private void handle(HttpExchange exchange, String method, RequestHandler handler) throws IOException {
+        handle(exchange, method, "application/json", handler);
+    }
+
+    /**
+     * Runs a request handler and writes its response, errors are always JSON
+     */
+    private void handle(HttpExchange exchange, String method, String contentType, RequestHandler handler) throws IOException {
+        int status;
+        String response;
+        if (!exchange.getRequestMethod().equals(method)) {
+            status = 405;
+            response = "{\"error\": \"Expected " + method + "\"}";
+        } else {
+            try {
+                response = handler.handle();
+                status = 200;
+            } catch (IllegalArgumentException e) {
+                status = 400;
+                response = "{\"error\": " + jsonString(String.valueOf(e.getMessage())) + "}";
+            } catch (Exception e) {
+                status = 500;
+                response = "{\"error\": " + jsonString(String.valueOf(e.getMessage())) + "}";
+            }
+        }
+
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", status == 200 ? contentType : "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(bytes);
+        }
+    }
+
+    /**
+     * @return The decoded request body image
+     */
+    private static MBFImage readImage(HttpExchange exchange) throws IOException {
+        byte[] bytes = exchange.getRequestBody().readAllBytes();
+        if (bytes.length == 0) {
+            throw new IllegalArgumentException("Expected an image as the request body");
+        }
+        return ImageUtilities.readMBF(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * Splits the raw query before decoding, so encoded '&' and '=' stay inside their value, and decodes '+' as a space
+     * @return The query parameters
+     */
+    static Map<String, String> query(URI uri) {
+        Map<String, String> parameters = new HashMap<>();
+        if (uri.getRawQuery() != null) {
+            for (String parameter : uri.getRawQuery().split("&")) {
+                String[] pair = parameter.split("=", 2);
+                parameters.put(URLDecoder.decode(pair[0], StandardCharsets.UTF_8), pair.length > 1 ? URLDecoder.decode(pair[1], StandardCharsets.UTF_8) : "");
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * @return The value as a JSON string with quotes, backslashes and control characters escaped, or null
+     */
+    static String jsonString(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    /**
+     * @return The value as a JSON number, or null if it is infinite or NaN
+     */
+    static String jsonNumber(double value) {
+        return Double.isFinite(value) ? String.valueOf(value) : "null";
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            serverExecutor.shutdown();
+        }
+        for (Predictor<Image, Joints> predictor : predictors) {
+            predictor.close();
+        }
+    }
+
+    /**
+     * Creates a service with the training images as the initial gallery, stored FVs are reused
+     * @param model The pose estimation model
+     * @param threads The number of extraction workers and predictors
+     * @param batcher The pose batcher, or null to use the predictors
+     * @param segmenter The person segmenter
+     * @param temperatures The list of colours
+     * @param metrics The stage timings and counters
+     * @return The service
+     */
+    static RecognitionService fromTraining(ZooModel<Image, Joints> model, int threads, PoseBatcher batcher, PersonSegmenter segmenter, Float[][] temperatures, PipelineMetrics metrics) throws IOException, TranslateException {
+        VFSListDataset<MBFImage> training = new VFSListDataset<>(Main.PATH + "biometrics\\training", ImageUtilities.MBFIMAGE_READER);
+        List<PersonFV> galleryFVs;
+        try (FeatureStore store = new FeatureStore(new File(Main.PATH + "features"), PersonFV.CONFIG + ";" + segmenter, PersonFV.FEATURE_LENGTH);
+             FeatureExtractor extractor = new FeatureExtractor(model, threads, batcher, null, segmenter, store, temperatures, metrics)) {
+            galleryFVs = extractor.extract(training, true);
+        }
+        return new RecognitionService(model, threads, batcher, segmenter, galleryFVs, temperatures, metrics);
+    }
+
+    /**
+     * Starts the service with the training images as the initial gallery
+     */
+    public static void main(String[] args) throws Exception {
+        int port = Integer.getInteger("port", 8080);
+        int threads = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
+        int poseBatch = Integer.getInteger("poseBatch", 1);
+        long poseBatchWait = Long.getLong("poseBatchWaitMs", 5);
+        Float[][] temperatures = new Float[48][];
+        Main.generateTemperatures(temperatures);
+
+        ZooModel<Image, Joints> model = Main.loadModel();
+        PoseBatcher batcher = poseBatch > 1 ? new PoseBatcher(model, poseBatch, poseBatchWait) : null;
+        RecognitionService service = fromTraining(model, threads, batcher, PersonSegmenter.fromProperties(), temperatures, new PipelineMetrics());
+        service.start(port, threads);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            service.close();
+            if (batcher != null) {
+                batcher.close();
+            }
+            model.close();
+        }));
+        System.out.println("Listening on http://localhost:" + port + " with " + service.size() + " enrolled FVs");
+    }
+
+    /**
+     * A request handler that returns a JSON response
+     */
+    private interface RequestHandler {
+        String handle() throws Exception;
+    }
+}
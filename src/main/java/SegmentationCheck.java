@@ -0,0 +1,97 @@
+import org.openimaj.data.dataset.VFSListDataset;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.pixel.ConnectedComponent;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class SegmentationCheck {
+    /**
+     * Compares the fast segmentation modes against the full segmentation on the first training images, reporting the
+     * person mask IoU and the time per image of each mode. Set the images with -Dimages, the scale with
+     * -DsegmentationScale and the region with -DsegmentationRoi=x,y,width,height
+     */
+    public static void main(String[] args) throws IOException {
+        VFSListDataset<MBFImage> training = new VFSListDataset<>(Main.PATH + "biometrics\\training", ImageUtilities.MBFIMAGE_READER);
+        int images = Math.min(Integer.getInteger("images", 10), training.size());
+        PersonSegmenter configured = PersonSegmenter.fromProperties();
+        int scale = Integer.getInteger("segmentationScale", 4);
+
+        PersonSegmenter full = new PersonSegmenter(PersonSegmenter.Mode.FULL, 1, null);
+        PersonSegmenter[] fastSegmenters = {
+                new PersonSegmenter(PersonSegmenter.Mode.DOWNSAMPLED, scale, configured.getRoi()),
+                new PersonSegmenter(PersonSegmenter.Mode.CENTROIDS, scale, configured.getRoi())
+        };
+        fastSegmenters[1].learnCentroids(PersonFV.crop(training.get(0)));
+        double[] iouSums = new double[fastSegmenters.length], minIous = new double[fastSegmenters.length];
+        long[] fastNanos = new long[fastSegmenters.length];
+        long fullNanos = 0;
+        Arrays.fill(minIous, 1);
+
+        StringBuilder report = new StringBuilder(String.format("%-6s %10s", "Image", "Full (ms)"));
+        for (PersonSegmenter segmenter : fastSegmenters) {
+            report.append(String.format(" %36s", segmenter + " (ms, IoU)"));
+        }
+        report.append("\n");
+
+        for (int i = 0; i < images; i++) {
+            MBFImage image = PersonFV.crop(training.get(i));
+            int width = image.getWidth(), height = image.getHeight();
+
+            long startTime = System.nanoTime();
+            ConnectedComponent reference = full.findPerson(image.clone());
+            long nanos = System.nanoTime() - startTime;
+            fullNanos += nanos;
+            PersonMask referenceMask = PersonMask.fromComponent(reference, width, height);
+            report.append(String.format("%-6d %10.1f", i + 1, nanos / 1e6));
+
+            for (int s = 0; s < fastSegmenters.length; s++) {
+                startTime = System.nanoTime();
+                ConnectedComponent component = fastSegmenters[s].findPerson(image);
+                nanos = System.nanoTime() - startTime;
+                fastNanos[s] += nanos;
+
+                double iou = intersectionOverUnion(referenceMask, PersonMask.fromComponent(component, width, height));
+                iouSums[s] += iou;
+                minIous[s] = Math.min(minIous[s], iou);
+                report.append(String.format(" %26.1f %9.3f", nanos / 1e6, iou));
+            }
+            report.append("\n");
+        }
+
+        report.append(String.format("%nMean full: %.1f ms%n", fullNanos / 1e6 / images));
+        for (int s = 0; s < fastSegmenters.length; s++) {
+            report.append(String.format("%s: %.1f ms (%.1fx), mean IoU %.3f, min IoU %.3f%n", fastSegmenters[s],
+                    fastNanos[s] / 1e6 / images, (double) fullNanos / fastNanos[s], iouSums[s] / images, minIous[s]));
+        }
+
+        File reportFile = new File(Main.PATH + "segmentation-report.txt");
+        FileWriter fileWriter = new FileWriter(reportFile);
+        fileWriter.write(report.toString());
+        fileWriter.close();
+
+        System.out.print(report);
+    }
+
+    /**
+     * @return The intersection over union of two masks of the same size
+     */
+    private static double intersectionOverUnion(PersonMask a, PersonMask b) {
+        int intersection = 0, union = 0;
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                boolean inA = a.contains(x, y), inB = b.contains(x, y);
+                if (inA && inB) {
+                    intersection++;
+                }
+                if (inA || inB) {
+                    union++;
+                }
+            }
+        }
+        return union == 0 ? 1 : (double) intersection / union;
+    }
+}
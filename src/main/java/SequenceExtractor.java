@@ -0,0 +1,316 @@
+import ai.djl.inference.Predictor;
+import ai.djl.modality.cv.Image;
+import ai.djl.modality.cv.output.Joints;
+import ai.djl.repository.zoo.ZooModel;
+import ai.djl.translate.TranslateException;
+import org.openimaj.data.dataset.VFSListDataset;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FeatureVector;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.pixel.ConnectedComponent;
+import org.openimaj.image.pixel.Pixel;
+import org.openimaj.math.geometry.shape.Rectangle;
+import org.openimaj.ml.pca.FeatureVectorPCA;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SequenceExtractor {
+    private final PersonSegmenter segmenter;
+    private final PoseEstimator predictor;
+    private final Float[][] temperatures;
+    private final int poseInterval;
+    private final double motionThreshold, roiMargin;
+    private final PipelineMetrics metrics;
+
+    // Tracking state of the current sequence
+    private Rectangle boundingBox;
+    private int area, framesSincePose, frameCount;
+    private List<Pixel> poseJoints;
+    private Pixel poseCentroid;
+    private double[] featureSum;
+
+    /**
+     * Extracts one FV from a sequence of frames of the same subject. After the first frame only the region around
+     * the previous bounding box is segmented, and the joints are reused, following the centroid, until poseInterval
+     * frames have passed or the person has moved too far. Not thread-safe, use one per sequence in flight
+     * @param segmenter The person segmenter
+     * @param predictor The pose estimator predictor
+     * @param temperatures The list of colours
+     * @param poseInterval Pose is estimated at least every this many frames
+     * @param motionThreshold Pose is estimated when the centroid moves more than this fraction of the person's height
+     * @param roiMargin The region segmented is the previous bounding box grown by this fraction on each side
+     * @param metrics The stage timings and counters
+     */
+    public SequenceExtractor(PersonSegmenter segmenter, PoseEstimator predictor, Float[][] temperatures, int poseInterval, double motionThreshold, double roiMargin, PipelineMetrics metrics) {
+        if (poseInterval < 1) {
+            throw new IllegalArgumentException("poseInterval must be at least 1");
+        }
+        this.segmenter = segmenter;
+        this.predictor = predictor;
+        this.temperatures = temperatures;
+        this.poseInterval = poseInterval;
+        this.motionThreshold = motionThreshold;
+        this.roiMargin = roiMargin;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Forgets the tracked person and the FVs so far, for the start of a new sequence
+     */
+    public void reset() {
+        boundingBox = null;
+        poseJoints = null;
+        poseCentroid = null;
+        featureSum = null;
+        frameCount = 0;
+    }
+
+    /**
+     * Extracts the FV of the next frame and adds it to the sequence
+     * @param image The frame
+     * @return The frame's FV
+     */
+    public DoubleFV addFrame(MBFImage image) throws TranslateException {
+        long frameStart = System.nanoTime();
+
+        // Crop the image
+        MBFImage cropped = PersonFV.crop(image);
+        int width = cropped.getWidth(), height = cropped.getHeight();
+        long stageStart = metrics.record("crop", frameStart);
+
+        // Segment around the previous bounding box, or the whole crop when the track is new or lost
+        ConnectedComponent component = null;
+        if (boundingBox != null) {
+            component = trackPerson(cropped);
+            stageStart = metrics.record("trackedSegmentation", stageStart);
+            metrics.increment(component != null ? "trackedFrames" : "trackLostFrames", 1);
+        }
+        if (component == null) {
+            FImage labels = segmenter.segment(segmenter.drawsOverImage() ? cropped.clone() : cropped);
+            stageStart = metrics.record("segmentation", stageStart);
+            component = PersonSegmenter.findPerson(labels);
+            stageStart = metrics.record("labeling", stageStart);
+        }
+        PersonMask mask = PersonMask.fromComponent(component, width, height);
+        Pixel centroid = mask.calculateCentroidPixel();
+        Rectangle newBoundingBox = mask.calculateRegularBoundingBox();
+
+        // Pose every poseInterval frames or when the person has moved since the last pose, otherwise the joints move
+        // with the centroid
+        double motion = poseCentroid == null ? Double.POSITIVE_INFINITY
+                : PersonFV.calculateDistance(centroid, poseCentroid) / Math.max(1, newBoundingBox.height);
+        if (poseJoints == null || framesSincePose + 1 >= poseInterval || motion > motionThreshold) {
+            PersonFV.maskImage(cropped, mask);
+            Joints joints = predictor.predict(PersonFV.toPoseInput(cropped));
+            poseJoints = new ArrayList<>();
+            for (Joints.Joint joint : joints.getJoints()) {
+                poseJoints.add(new Pixel((int) (joint.getX() * width), (int) (joint.getY() * height)));
+            }
+            poseCentroid = centroid;
+            framesSincePose = 0;
+            stageStart = metrics.record("pose", stageStart);
+        } else {
+            framesSincePose++;
+            metrics.increment("poseReusedFrames", 1);
+        }
+        List<Pixel> jointPixels = new ArrayList<>(poseJoints.size());
+        for (Pixel joint : poseJoints) {
+            jointPixels.add(new Pixel(joint.x + (centroid.x - poseCentroid.x), joint.y + (centroid.y - poseCentroid.y)));
+        }
+
+        // The same FV as PersonFV
+        double[] temperatureCounts = PersonFV.temperatureHistogram(mask, centroid, temperatures, null, metrics);
+        stageStart = metrics.record("temperature", stageStart);
+        DoubleFV silhouetteFV = new DoubleFV(PersonFV.silhouetteDistances(component, centroid)).normaliseFV();
+        stageStart = metrics.record("silhouette", stageStart);
+        DoubleFV jointsFV = new DoubleFV(PersonFV.jointDistances(PersonFV.toPoseModel(jointPixels), centroid)).normaliseFV();
+        metrics.record("joints", stageStart);
+        DoubleFV feature = silhouetteFV.concatenate(jointsFV).concatenate(new DoubleFV(temperatureCounts).normaliseFV());
+
+        // Accumulate and track the person into the next frame
+        double[] values = feature.asDoubleVector();
+        if (featureSum == null) {
+            featureSum = new double[values.length];
+        }
+        for (int i = 0; i < values.length; i++) {
+            featureSum[i] += values[i];
+        }
+        frameCount++;
+        boundingBox = newBoundingBox;
+        area = mask.getArea();
+        metrics.record("sequenceFrame", frameStart);
+        metrics.increment("sequenceFrames", 1);
+        return feature;
+    }
+
+    /**
+     * Segments the previous bounding box grown by the margin. Outside the region takes the label most common along
+     * its border, so the background stays one component around the person
+     * @param cropped The cropped frame
+     * @return The person component, or null if it touches the region's edge or its area jumped, as the track is lost
+     */
+    private ConnectedComponent trackPerson(MBFImage cropped) {
+        int width = cropped.getWidth(), height = cropped.getHeight();
+        int marginX = (int) Math.ceil(boundingBox.width * roiMargin), marginY = (int) Math.ceil(boundingBox.height * roiMargin);
+        int x0 = Math.max(0, (int) boundingBox.x - marginX), y0 = Math.max(0, (int) boundingBox.y - marginY);
+        int x1 = Math.min(width, (int) (boundingBox.x + boundingBox.width) + marginX + 1);
+        int y1 = Math.min(height, (int) (boundingBox.y + boundingBox.height) + marginY + 1);
+        if (x1 - x0 < 2 || y1 - y0 < 2) {
+            return null;
+        }
+
+        FImage regionLabels = segmenter.segment(cropped.extractROI(x0, y0, x1 - x0, y1 - y0));
+        float[][] regionPixels = regionLabels.pixels;
+        FImage labels = new FImage(width, height);
+        labels.fill(borderLabel(regionPixels));
+        for (int y = y0; y < y1; y++) {
+            System.arraycopy(regionPixels[y - y0], 0, labels.pixels[y], x0, x1 - x0);
+        }
+        metrics.increment("trackedSegmentationPixels", (long) (x1 - x0) * (y1 - y0));
+
+        // One component means the region is all background
+        List<ConnectedComponent> components = PersonSegmenter.findComponents(labels);
+        if (components.size() < 2) {
+            return null;
+        }
+        ConnectedComponent component = components.get(1);
+
+        // Edges of the region that are not the crop's edges
+        Rectangle box = component.calculateRegularBoundingBox();
+        boolean touchesEdge = (x0 > 0 && box.x <= x0) || (y0 > 0 && box.y <= y0)
+                || (x1 < width && box.x + box.width >= x1 - 1) || (y1 < height && box.y + box.height >= y1 - 1);
+        int componentArea = component.calculateArea();
+        if (touchesEdge || componentArea < area / 2 || componentArea > area * 2) {
+            return null;
+        }
+        return component;
+    }
+
+    /**
+     * @return The label most common along the region's border
+     */
+    private static float borderLabel(float[][] pixels) {
+        int height = pixels.length, width = pixels[0].length;
+        float[] border = new float[2 * (width + height)];
+        int count = 0;
+        for (int x = 0; x < width; x++) {
+            border[count++] = pixels[0][x];
+            border[count++] = pixels[height - 1][x];
+        }
+        for (int y = 0; y < height; y++) {
+            border[count++] = pixels[y][0];
+            border[count++] = pixels[y][width - 1];
+        }
+        Arrays.sort(border, 0, count);
+
+        float label = border[0];
+        int run = 0, longestRun = 0;
+        for (int i = 0; i < count; i++) {
+            run = i > 0 && border[i] == border[i - 1] ? run + 1 : 1;
+            if (run > longestRun) {
+                longestRun = run;
+                label = border[i];
+            }
+        }
+        return label;
+    }
+
+    /**
+     * @param id The FV id
+     * @return The mean FV of the frames so far
+     */
+    public PersonFV aggregate(int id) {
+        if (frameCount == 0) {
+            throw new IllegalStateException("No frames in the sequence");
+        }
+        double[] mean = new double[featureSum.length];
+        for (int i = 0; i < mean.length; i++) {
+            mean[i] = featureSum[i] / frameCount;
+        }
+        return new PersonFV(id, new DoubleFV(mean));
+    }
+
+    /**
+     * @return The number of frames in the sequence
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Extracts one FV per sequence in -DsequenceDir (default sequences), each subdirectory holding the frames of one
+     * subject in file name order, and matches it against the training gallery. Pose runs every -DposeInterval frames
+     * (default 5) or past -DmotionThreshold (default 0.05 of the person's height) and the region grows the previous
+     * bounding box by -DroiMargin (default 0.15). Writes sequence-report.txt
+     */
+    public static void main(String[] args) throws Exception {
+        File sequenceDir = new File(System.getProperty("sequenceDir", Main.PATH + "sequences"));
+        int poseInterval = Integer.getInteger("poseInterval", 5);
+        double motionThreshold = Double.parseDouble(System.getProperty("motionThreshold", "0.05"));
+        double roiMargin = Double.parseDouble(System.getProperty("roiMargin", "0.15"));
+        Float[][] temperatures = new Float[48][];
+        Main.generateTemperatures(temperatures);
+        PersonSegmenter segmenter = PersonSegmenter.fromProperties();
+        PipelineMetrics metrics = new PipelineMetrics();
+
+        File[] sequences = sequenceDir.listFiles(File::isDirectory);
+        if (sequences == null) {
+            throw new IOException(sequenceDir + " is not a directory");
+        }
+        Arrays.sort(sequences);
+
+        StringBuilder report = new StringBuilder(String.format("%-24s %8s %8s %12s %10s %10s%n", "Sequence", "Frames", "Poses", "Frame (ms)", "Nearest", "Distance"));
+        try (ZooModel<Image, Joints> model = Main.loadModel();
+             Predictor<Image, Joints> predictor = model.newPredictor()) {
+            // The training gallery, stored FVs reused
+            List<PersonFV> trainingFVs;
+            try (FeatureStore store = new FeatureStore(new File(Main.PATH + "features"), PersonFV.CONFIG + ";" + segmenter, PersonFV.FEATURE_LENGTH);
+                 FeatureExtractor extractor = new FeatureExtractor(model, Runtime.getRuntime().availableProcessors(), null, null, segmenter, store, temperatures, metrics)) {
+                trainingFVs = extractor.extract(new VFSListDataset<>(Main.PATH + "biometrics\\training", ImageUtilities.MBFIMAGE_READER), true);
+            }
+            List<FeatureVector> FVs = new ArrayList<>();
+            for (PersonFV trainingFV : trainingFVs) {
+                FVs.add(trainingFV.getExtractedFeature());
+            }
+            FeatureVectorPCA pca = new FeatureVectorPCA();
+            pca.learnBasis(FVs);
+            IdentificationEngine engine = new IdentificationEngine(pca, trainingFVs);
+
+            SequenceExtractor extractor = new SequenceExtractor(segmenter, predictor::predict, temperatures, poseInterval, motionThreshold, roiMargin, metrics);
+            for (int i = 0; i < sequences.length; i++) {
+                File[] frames = sequences[i].listFiles(File::isFile);
+                if (frames == null || frames.length == 0) {
+                    continue;
+                }
+                Arrays.sort(frames);
+
+                extractor.reset();
+                long poses = metrics.stage("pose").getCount(), startTime = System.nanoTime();
+                for (File frame : frames) {
+                    extractor.addFrame(ImageUtilities.readMBF(frame));
+                }
+                double frameMillis = (System.nanoTime() - startTime) / 1e6 / frames.length;
+                IdentificationEngine.Match nearest = engine.query(extractor.aggregate(i + 1).getExtractedFeature(), 1).nearest();
+                report.append(String.format("%-24s %8d %8d %12.1f %10d %10.4f%n", sequences[i].getName(), frames.length,
+                        metrics.stage("pose").getCount() - poses, frameMillis, nearest == null ? -1 : nearest.id(), nearest == null ? -1 : nearest.distance()));
+            }
+        }
+        report.append(String.format("%nTracked frames %d, track lost %d, pose reused %d%n", metrics.getCount("trackedFrames"),
+                metrics.getCount("trackLostFrames"), metrics.getCount("poseReusedFrames")));
+
+        File reportFile = new File(Main.PATH + "sequence-report.txt");
+        FileWriter fileWriter = new FileWriter(reportFile);
+        fileWriter.write(report.toString());
+        fileWriter.close();
+        metrics.write(Main.PATH);
+
+        System.out.print(report);
+    }
+}
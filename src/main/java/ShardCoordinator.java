@@ -0,0 +1,399 @@
+import ai.djl.modality.cv.Image;
+import ai.djl.modality.cv.output.Joints;
+import ai.djl.repository.zoo.ZooModel;
+import org.openimaj.data.dataset.VFSListDataset;
+import org.openimaj.feature.FeatureVector;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.ml.pca.FeatureVectorPCA;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ShardCoordinator implements AutoCloseable {
+    private final List<ShardClient> shards = new CopyOnWriteArrayList<>();
+    private final List<Process> processes = new ArrayList<>();
+    private final ExecutorService scatter = Executors.newCachedThreadPool();
+    private final PipelineMetrics metrics;
+
+    /**
+     * Splits the projected gallery across shard processes, each query is sent to every shard and their local top-k
+     * are merged into the global top-k
+     * @param metrics The stage timings and counters, each shard's round trips are the shardN stage
+     */
+    public ShardCoordinator(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Connects to a running shard, rows it already holds are kept and queried
+     * @param address The shard address
+     */
+    public void addShard(InetSocketAddress address) throws IOException {
+        ShardClient shard = new ShardClient(address, "shard" + shards.size());
+        shard.size = shard.requestSize();
+        shards.add(shard);
+    }
+
+    /**
+     * Starts a shard process with the same classpath and connects to it
+     */
+    public void spawnShard() throws IOException {
+        Process process = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), "GalleryShard")
+                .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        processes.add(process);
+
+        // The shard prints its port first
+        String port = new BufferedReader(new InputStreamReader(process.getInputStream())).readLine();
+        if (port == null) {
+            throw new IOException("Shard exited before it was listening");
+        }
+        addShard(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(port.trim())));
+    }
+
+    /**
+     * Adds projected rows to the smallest shards in batches
+     * @param ids The gallery ids
+     * @param rows The projected rows, row-major
+     * @param dimensions The projected dimensions
+     */
+    public void enroll(int[] ids, double[] rows, int dimensions) throws IOException {
+        if (shards.isEmpty()) {
+            throw new IllegalStateException("No shards");
+        }
+        int batch = Math.max(1, ids.length / shards.size());
+        for (int start = 0; start < ids.length; start += batch) {
+            int count = Math.min(batch, ids.length - start);
+            int[] batchIds = new int[count];
+            double[] batchRows = new double[count * dimensions];
+            System.arraycopy(ids, start, batchIds, 0, count);
+            System.arraycopy(rows, start * dimensions, batchRows, 0, count * dimensions);
+            smallest().add(batchIds, batchRows, dimensions);
+        }
+    }
+
+    /**
+     * Moves rows from the largest shards to the smallest until they differ by at most one, used after adding a
+     * shard. The rows are already projected so nothing is extracted again. Rows are copied to the smaller shard before
+     * they are removed from the larger one, so a failed move leaves them where they were
+     * @return The number of rows moved
+     */
+    public int rebalance() throws IOException {
+        int moved = 0;
+        while (!shards.isEmpty()) {
+            ShardClient largest = shards.get(0), smallest = shards.get(0);
+            for (ShardClient shard : shards) {
+                largest = shard.size > largest.size ? shard : largest;
+                smallest = shard.size < smallest.size ? shard : smallest;
+            }
+            int count = (largest.size - smallest.size) / 2;
+            if (count == 0) {
+                return moved;
+            }
+            ShardClient.Rows rows = largest.copy(count);
+            smallest.add(rows.ids(), rows.values(), rows.dimensions());
+            largest.remove(rows.ids());
+            moved += rows.ids().length;
+        }
+        return moved;
+    }
+
+    /**
+     * Finds the k nearest gallery FVs across every shard, the shards are queried in parallel
+     * @param probe The projected probe
+     * @param k The number of matches
+     * @return The merged matches and the nearest and furthest distances
+     */
+    public IdentificationEngine.QueryResult query(double[] probe, int k) throws IOException, InterruptedException {
+        List<Future<IdentificationEngine.QueryResult>> futures = new ArrayList<>(shards.size());
+        for (ShardClient shard : shards) {
+            futures.add(scatter.submit(() -> shard.query(probe, k)));
+        }
+
+        // Shard results are sorted, so merging keeps ties in shard order
+        TopK best = new TopK(k);
+        double furthestDistance = -1;
+        for (Future<IdentificationEngine.QueryResult> future : futures) {
+            IdentificationEngine.QueryResult result;
+            try {
+                result = future.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ioException ? ioException : new IOException(e.getCause());
+            }
+            for (IdentificationEngine.Match match : result.matches()) {
+                best.offer(match.id(), match.distance());
+            }
+            furthestDistance = Math.max(furthestDistance, result.furthestDistance());
+        }
+        List<IdentificationEngine.Match> matches = best.toMatches();
+        return new IdentificationEngine.QueryResult(matches, matches.isEmpty() ? -1 : matches.get(0).distance(), furthestDistance);
+    }
+
+    /**
+     * @return Each shard's rows, round trip latency percentiles and failed connections
+     */
+    public String getShardStats() throws IOException {
+        StringBuilder stats = new StringBuilder(String.format("%-8s %-22s %8s %8s %10s %10s %10s %12s%n", "Shard", "Address", "Rows", "Queries", "p50 (ms)", "p90 (ms)", "p99 (ms)", "Conn errors"));
+        for (ShardClient shard : shards) {
+            LatencyHistogram latency = metrics.stage(shard.name);
+            stats.append(String.format("%-8s %-22s %8d %8d %10.3f %10.3f %10.3f %12d%n", shard.name, shard.address, shard.size,
+                    latency.getCount(), latency.percentile(50), latency.percentile(90), latency.percentile(99), shard.requestConnectionErrors()));
+        }
+        return stats.toString();
+    }
+
+    /**
+     * @return The number of shards
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * @return The shard with the fewest rows
+     */
+    private ShardClient smallest() {
+        ShardClient smallest = shards.get(0);
+        for (ShardClient shard : shards) {
+            smallest = shard.size < smallest.size ? shard : smallest;
+        }
+        return smallest;
+    }
+
+    /**
+     * Disconnects and stops the shard processes this coordinator started
+     */
+    @Override
+    public void close() {
+        scatter.shutdownNow();
+        for (ShardClient shard : shards) {
+            try {
+                shard.socket.close();
+            } catch (IOException ignored) { }
+        }
+        for (Process process : processes) {
+            process.destroy();
+        }
+    }
+
+    /**
+     * One connection to a shard, requests on it are sent one at a time
+     */
+    private class ShardClient {
+        private final InetSocketAddress address;
+        private final String name;
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private volatile int size;
+
+        private ShardClient(InetSocketAddress address, String name) throws IOException {
+            this.address = address;
+            this.name = name;
+            this.socket = new Socket(address.getAddress(), address.getPort());
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        private synchronized void add(int[] ids, double[] rows, int dimensions) throws IOException {
+            out.writeByte(GalleryShard.ADD);
+            out.writeInt(ids.length);
+            out.writeInt(dimensions);
+            for (int i = 0; i < ids.length; i++) {
+                out.writeInt(ids[i]);
+                for (int d = 0; d < dimensions; d++) {
+                    out.writeDouble(rows[(i * dimensions) + d]);
+                }
+            }
+            out.flush();
+            readStatus();
+            size = in.readInt();
+        }
+
+        private synchronized IdentificationEngine.QueryResult query(double[] probe, int k) throws IOException {
+            long startTime = System.nanoTime();
+            out.writeByte(GalleryShard.QUERY);
+            out.writeInt(k);
+            out.writeInt(probe.length);
+            for (double value : probe) {
+                out.writeDouble(value);
+            }
+            out.flush();
+            readStatus();
+            int count = in.readInt();
+            List<IdentificationEngine.Match> matches = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                matches.add(new IdentificationEngine.Match(in.readInt(), in.readDouble()));
+            }
+            double furthestDistance = in.readDouble();
+            metrics.record(name, startTime);
+            return new IdentificationEngine.QueryResult(matches, matches.isEmpty() ? -1 : matches.get(0).distance(), furthestDistance);
+        }
+
+        private synchronized Rows copy(int count) throws IOException {
+            out.writeByte(GalleryShard.COPY);
+            out.writeInt(count);
+            out.flush();
+            readStatus();
+            int copied = in.readInt(), dimensions = in.readInt();
+            int[] ids = new int[copied];
+            double[] values = new double[copied * dimensions];
+            for (int i = 0; i < copied; i++) {
+                ids[i] = in.readInt();
+                for (int d = 0; d < dimensions; d++) {
+                    values[(i * dimensions) + d] = in.readDouble();
+                }
+            }
+            return new Rows(ids, values, dimensions);
+        }
+
+        private synchronized void remove(int[] ids) throws IOException {
+            out.writeByte(GalleryShard.REMOVE);
+            out.writeInt(ids.length);
+            for (int id : ids) {
+                out.writeInt(id);
+            }
+            out.flush();
+            readStatus();
+            size = in.readInt();
+        }
+
+        private synchronized int requestSize() throws IOException {
+            out.writeByte(GalleryShard.SIZE);
+            out.flush();
+            readStatus();
+            return in.readInt();
+        }
+
+        private synchronized long requestConnectionErrors() throws IOException {
+            out.writeByte(GalleryShard.ERRORS);
+            out.flush();
+            readStatus();
+            return in.readLong();
+        }
+
+        /**
+         * Throws the shard's error message
+         */
+        private void readStatus() throws IOException {
+            if (in.readByte() != 0) {
+                throw new IOException(name + " at " + address + ": " + in.readUTF());
+            }
+        }
+
+        /**
+         * A record to represent rows moved between shards
+         * @param ids
+         * @param values
+         * @param dimensions
+         */
+        private record Rows(int[] ids, double[] values, int dimensions) { }
+    }
+
+    /**
+     * Splits the projected training gallery across -Dshards shard processes, or connects to -DshardAddresses as
+     * host:port pairs, then starts -DaddShards more and rebalances onto them. Each testing FV is matched against the
+     * shards and the local engine, and the agreement, CCR and per-shard latencies are written to shard-report.txt.
+     * Stored FVs are reused, so nothing is extracted twice
+     */
+    public static void main(String[] args) throws Exception {
+        int shardCount = Integer.getInteger("shards", 4);
+        int addShards = Integer.getInteger("addShards", 1);
+        int k = Integer.getInteger("k", 5);
+        Float[][] temperatures = new Float[48][];
+        Main.generateTemperatures(temperatures);
+        PersonSegmenter segmenter = PersonSegmenter.fromProperties();
+        PipelineMetrics metrics = new PipelineMetrics();
+
+        List<PersonFV> trainingFVs, testingFVs;
+        try (ZooModel<Image, Joints> model = Main.loadModel();
+             FeatureStore store = new FeatureStore(new File(Main.PATH + "features"), PersonFV.CONFIG + ";" + segmenter, PersonFV.FEATURE_LENGTH);
+             FeatureExtractor extractor = new FeatureExtractor(model, Runtime.getRuntime().availableProcessors(), null, null, segmenter, store, temperatures, metrics)) {
+            trainingFVs = extractor.extract(new VFSListDataset<>(Main.PATH + "biometrics\\training", ImageUtilities.MBFIMAGE_READER), true);
+            testingFVs = extractor.extract(new VFSListDataset<>(Main.PATH + "biometrics\\testing", ImageUtilities.MBFIMAGE_READER), false);
+        }
+
+        // Learning PCA basis and projecting the gallery once
+        List<FeatureVector> FVs = new ArrayList<>();
+        for (PersonFV trainingFV : trainingFVs) {
+            FVs.add(trainingFV.getExtractedFeature());
+        }
+        FeatureVectorPCA pca = new FeatureVectorPCA();
+        pca.learnBasis(FVs);
+        IdentificationEngine engine = new IdentificationEngine(pca, trainingFVs);
+        int dimensions = engine.getDimensions();
+        int[] ids = new int[trainingFVs.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = trainingFVs.get(i).getId();
+        }
+        double[] rows = engine.getProjectedRows();
+
+        StringBuilder report = new StringBuilder();
+        try (ShardCoordinator coordinator = new ShardCoordinator(metrics)) {
+            String addresses = System.getProperty("shardAddresses");
+            if (addresses != null) {
+                for (String address : addresses.split(",")) {
+                    String[] hostPort = address.trim().split(":");
+                    coordinator.addShard(new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1])));
+                }
+            } else {
+                for (int i = 0; i < shardCount; i++) {
+                    coordinator.spawnShard();
+                }
+            }
+            coordinator.enroll(ids, rows, dimensions);
+
+            // Shards added later take their share of the projected rows
+            for (int i = 0; i < addShards; i++) {
+                coordinator.spawnShard();
+            }
+            int moved = coordinator.rebalance();
+
+            float correctCount = 0f;
+            int agreements = 0;
+            for (PersonFV testingFV : testingFVs) {
+                long startTime = System.nanoTime();
+                IdentificationEngine.QueryResult result = coordinator.query(engine.project(testingFV.getExtractedFeature()), k);
+                metrics.record("shardedMatching", startTime);
+                if (result.nearest() != null && Main.classificationCheck(testingFV.getId(), result.nearest().id())) {
+                    correctCount += 1f;
+                }
+                if (result.matches().equals(engine.query(testingFV.getExtractedFeature(), k).matches())) {
+                    agreements++;
+                }
+            }
+
+            LatencyHistogram matching = metrics.stage("shardedMatching");
+            report.append("Gallery: ").append(ids.length).append(" FVs, ").append(dimensions).append(" dimensions, ")
+                    .append(coordinator.getShardCount()).append(" shards, ").append(moved).append(" rows moved by rebalancing\n");
+            report.append(String.format("CCR: %.3f%%, top-%d agreement with the local engine: %d/%d%n", (correctCount / 22f) * 100f, k, agreements, testingFVs.size()));
+            report.append(String.format("Sharded query p50 %.3f ms, p99 %.3f ms%n%n", matching.percentile(50), matching.percentile(99)));
+            report.append(coordinator.getShardStats());
+        }
+
+        File reportFile = new File(Main.PATH + "shard-report.txt");
+        FileWriter fileWriter = new FileWriter(reportFile);
+        fileWriter.write(report.toString());
+        fileWriter.close();
+
+        System.out.print(report);
+    }
+}
@@ -0,0 +1,168 @@
+import ai.djl.inference.Predictor;
+import ai.djl.modality.cv.Image;
+import ai.djl.modality.cv.output.Joints;
+import ai.djl.repository.zoo.ZooModel;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FeatureVector;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.pixel.ConnectedComponent;
+import org.openimaj.image.pixel.Pixel;
+import org.openimaj.ml.pca.FeatureVectorPCA;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class StageBenchmark {
+    private static volatile Object sink;
+
+    /**
+     * Times each recognition stage on its own over fixture images, so regressions can be tracked per stage and
+     * alternative implementations compared. Each stage gets its inputs from the stages before it, prepared up front.
+     * The PCA, nearest neighbour, all-pairs and EER stages use a synthetic gallery the size of the training set. Set the
+     * fixtures (training image names) with -Dfixtures, the runs with -Dwarmup and -Diterations, a subset of the
+     * stages with -Dstages=crop,segmentation,... and the segmentation with -Dsegmentation
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String[] fixtures = System.getProperty("fixtures", "016z050pf.jpg,016z050ps.jpg,016z051pf.jpg,016z051ps.jpg").split(",");
+        int warmup = Integer.getInteger("warmup", 5);
+        int iterations = Integer.getInteger("iterations", 50);
+        String stagesProperty = System.getProperty("stages");
+        Set<String> stages = stagesProperty == null ? null : Set.of(stagesProperty.split(","));
+        PersonSegmenter segmenter = PersonSegmenter.fromProperties();
+        Float[][] temperatures = new Float[48][];
+        Main.generateTemperatures(temperatures);
+
+        // Each stage's inputs from the fixture images
+        int count = fixtures.length;
+        MBFImage[] originals = new MBFImage[count], cropped = new MBFImage[count], segmented = new MBFImage[count];
+        FImage[] labels = new FImage[count];
+        ConnectedComponent[] components = new ConnectedComponent[count];
+        PersonMask[] masks = new PersonMask[count];
+        Pixel[] centroids = new Pixel[count];
+        Image[] poseInputs = new Image[count];
+        for (int i = 0; i < count; i++) {
+            originals[i] = ImageUtilities.readMBF(new File(Main.PATH + "biometrics\\training\\" + fixtures[i]));
+            cropped[i] = PersonFV.crop(originals[i]);
+            if (segmenter.needsCentroids()) {
+                segmenter.learnCentroids(cropped[i]);
+            }
+            labels[i] = segmenter.segment(segmenter.drawsOverImage() ? cropped[i].clone() : cropped[i]);
+            components[i] = PersonSegmenter.findPerson(labels[i]);
+            masks[i] = PersonMask.fromComponent(components[i], cropped[i].getWidth(), cropped[i].getHeight());
+            segmented[i] = cropped[i].clone();
+            PersonFV.maskImage(segmented[i], masks[i]);
+            centroids[i] = masks[i].calculateCentroidPixel();
+            poseInputs[i] = PersonFV.toPoseInput(segmented[i]);
+        }
+
+        // A synthetic gallery with the training set's size, ids and FV length
+        Random random = new Random(42);
+        List<PersonFV> galleryFVs = new ArrayList<>();
+        List<FeatureVector> FVs = new ArrayList<>();
+        for (int id = 1; id <= 88; id++) {
+            double[] values = new double[PersonFV.FEATURE_LENGTH];
+            for (int d = 0; d < values.length; d++) {
+                values[d] = random.nextDouble();
+            }
+            DoubleFV feature = new DoubleFV(values).normaliseFV();
+            galleryFVs.add(new PersonFV(id, feature));
+            FVs.add(feature);
+        }
+        FeatureVectorPCA pca = new FeatureVectorPCA();
+        pca.learnBasis(FVs);
+        IdentificationEngine engine = new IdentificationEngine(pca, galleryFVs);
+
+        int dimensions = engine.getDimensions();
+        double[] projected = new double[galleryFVs.size() * dimensions];
+        for (int i = 0; i < galleryFVs.size(); i++) {
+            System.arraycopy(engine.project(FVs.get(i)), 0, projected, i * dimensions, dimensions);
+        }
+        AllPairsDistances allPairs = AllPairsDistances.fromProperties(dimensions);
+        AllPairsDistances.PairLabeler labeler = (rowA, rowB) -> Main.verificationCheck(galleryFVs.get(rowA).getId(), galleryFVs.get(rowB).getId());
+        AllPairsDistances.Buffers distances = allPairs.collect(projected, galleryFVs.size(), dimensions, labeler);
+        double[] interDistances = distances.getInterDistances(), intraDistances = distances.getIntraDistances();
+
+        StringBuilder report = new StringBuilder("Java " + System.getProperty("java.version") + ", fixtures: "
+                + String.join(", ", fixtures) + ", " + segmenter + ", " + warmup + " warmup and " + iterations + " measured runs\n");
+        report.append(String.format("%-20s %12s %12s %12s%n", "Stage", "Mean (ms)", "p50 (ms)", "p99 (ms)"));
+
+        measure(report, stages, "crop", i -> PersonFV.crop(originals[i % count]), warmup, iterations);
+        measure(report, stages, "segmentation", i -> segmenter.segment(segmenter.drawsOverImage() ? cropped[i % count].clone() : cropped[i % count]), warmup, iterations);
+        measure(report, stages, "labeling", i -> PersonSegmenter.findPerson(labels[i % count]), warmup, iterations);
+        measure(report, stages, "masking", i -> {
+            PersonMask mask = PersonMask.fromComponent(components[i % count], cropped[i % count].getWidth(), cropped[i % count].getHeight());
+            PersonFV.maskImage(segmented[i % count], mask);
+            return mask;
+        }, warmup, iterations);
+        measure(report, stages, "poseInput", i -> PersonFV.toPoseInput(segmented[i % count]), warmup, iterations);
+
+        // Pose inference needs the model, the other stages do not
+        if (stages == null || stages.contains("pose")) {
+            try (ZooModel<Image, Joints> model = Main.loadModel();
+                 Predictor<Image, Joints> predictor = model.newPredictor()) {
+                measure(report, stages, "pose", i -> predictor.predict(poseInputs[i % count]), warmup, iterations);
+            } catch (Exception e) {
+                report.append(String.format("%-20s skipped, %s%n", "pose", e));
+            }
+        }
+
+        measure(report, stages, "silhouette", i -> PersonFV.silhouetteDistances(components[i % count], centroids[i % count]), warmup, iterations);
+        measure(report, stages, "temperature", i -> PersonFV.temperatureHistogram(masks[i % count], centroids[i % count], temperatures, null, null), warmup, iterations);
+        measure(report, stages, "pcaLearn", i -> {
+            FeatureVectorPCA learnt = new FeatureVectorPCA();
+            learnt.learnBasis(FVs);
+            return learnt;
+        }, warmup, iterations);
+        measure(report, stages, "pcaProject", i -> pca.project(FVs.get(i % FVs.size())), warmup, iterations);
+        measure(report, stages, "nearestNeighbour", i -> engine.query(FVs.get(i % FVs.size()), 1), warmup, iterations);
+        measure(report, stages, "allPairs", i -> allPairs.collect(projected, galleryFVs.size(), dimensions, labeler), warmup, iterations);
+        measure(report, stages, "eer", i -> new VerificationMetrics(interDistances, intraDistances).getEER(), warmup, iterations);
+
+        File reportFile = new File(Main.PATH + "benchmark-report.txt");
+        FileWriter fileWriter = new FileWriter(reportFile);
+        fileWriter.write(report.toString());
+        fileWriter.close();
+
+        System.out.print(report);
+    }
+
+    /**
+     * Runs a stage for the warmup and measured runs and appends its mean and percentile times to the report
+     */
+    private static void measure(StringBuilder report, Set<String> stages, String name, Stage stage, int warmup, int iterations) {
+        if (stages != null && !stages.contains(name)) {
+            return;
+        }
+        LatencyStats stats = new LatencyStats(iterations);
+        long totalNanos = 0;
+        try {
+            for (int i = 0; i < warmup + iterations; i++) {
+                long startTime = System.nanoTime();
+                sink = stage.run(i);
+                long nanos = System.nanoTime() - startTime;
+                if (i >= warmup) {
+                    stats.record(nanos);
+                    totalNanos += nanos;
+                }
+            }
+        } catch (Exception e) {
+            report.append(String.format("%-20s failed, %s%n", name, e));
+            return;
+        }
+        report.append(String.format("%-20s %12.3f %12.3f %12.3f%n", name, totalNanos / 1e6 / iterations, stats.percentile(50), stats.percentile(99)));
+    }
+
+    /**
+     * A stage run on the i-th input
+     */
+    private interface Stage {
+        Object run(int i) throws Exception;
+    }
+}
@@ -0,0 +1,236 @@
+import ai.djl.modality.cv.Image;
+import ai.djl.modality.cv.output.Joints;
+import ai.djl.repository.zoo.ZooModel;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.MBFImage;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class StreamIngestor implements AutoCloseable {
+    private final RecognitionService service;
+    private final int k;
+    private final long settleMillis;
+    private final Semaphore window;
+    private final ExecutorService workers;
+    private final PrintWriter output;
+    private final PipelineMetrics metrics;
+
+    /**
+     * Identifies images as they arrive. At most window images are queued or in extraction at once, so memory stays
+     * flat however fast they arrive, and each result is written as soon as it is ready
+     * @param service The recognition service holding the gallery
+     * @param k The number of matches per image
+     * @param windowSize The number of images in flight before submit blocks
+     * @param threads The number of workers
+     * @param settleMillis A file is read once it is not empty and its size has stayed the same for two of these
+     * intervals, so partial writes are skipped
+     * @param output The output for one JSON result per line
+     * @param metrics The stage timings and counters
+     */
+    public StreamIngestor(RecognitionService service, int k, int windowSize, int threads, long settleMillis, PrintWriter output, PipelineMetrics metrics) {
+        if (windowSize < 1 || threads < 1) {
+            throw new IllegalArgumentException("windowSize and threads must be at least 1");
+        }
+        this.service = service;
+        this.k = k;
+        this.settleMillis = settleMillis;
+        this.window = new Semaphore(windowSize);
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.output = output;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Queues an image to be identified, blocks while the window is full
+     * @param file The image file
+     */
+    public void submit(File file) throws InterruptedException {
+        window.acquire();
+        try {
+            workers.execute(() -> {
+                try {
+                    process(file);
+                } finally {
+                    window.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            window.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Submits the images already in a directory, then each new image until interrupted
+     * @param directory The input directory
+     */
+    public void watch(Path directory) throws IOException, InterruptedException {
+        try (WatchService watcher = directory.getFileSystem().newWatchService()) {
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+
+            // Registered first so nothing is missed, a file seen by both is only submitted once. Those create events
+            // are queued before the listing ends, so they all arrive in the first batch
+            Set<Path> existing = new HashSet<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path path : files) {
+                    if (isImage(path)) {
+                        existing.add(path);
+                        submit(path.toFile());
+                    }
+                }
+            }
+
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        metrics.increment("streamWatchOverflows", 1);
+                        continue;
+                    }
+                    Path path = directory.resolve((Path) event.context());
+                    if (isImage(path) && !existing.remove(path)) {
+                        submit(path.toFile());
+                    }
+                }
+                existing.clear();
+                if (!key.reset()) {
+                    throw new IOException(directory + " is no longer accessible");
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads, identifies and writes the result of one image, failures are written as results
+     * @param file The image file
+     */
+    private void process(File file) {
+        long startTime = System.nanoTime();
+        String json;
+        try {
+            MBFImage image = readWhenSettled(file);
+            json = service.toJson(service.identify(image, k));
+            metrics.increment("streamedImages", 1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Exception e) {
+            json = "{\"error\": " + RecognitionService.jsonString(String.valueOf(e.getMessage())) + "}";
+            metrics.increment("streamFailures", 1);
+        }
+        long nanos = System.nanoTime() - startTime;
+        metrics.stage("stream").record(nanos);
+
+        String line = "{\"file\": " + RecognitionService.jsonString(file.getName())
+                + ", \"latencyMs\": " + String.format(Locale.ROOT, "%.1f", nanos / 1e6) + ", \"result\": " + json + "}";
+        synchronized (output) {
+            output.println(line);
+            output.flush();
+        }
+    }
+
+    /**
+     * Waits until the file is not empty and its size and modification time have stayed the same for two settle
+     * intervals, then decodes it. A file still empty after a minute is a failure
+     * @param file The image file
+     * @return The image
+     */
+    private MBFImage readWhenSettled(File file) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+        long size = file.length(), modified = file.lastModified();
+        int stableIntervals = 0;
+        while (stableIntervals < 2) {
+            Thread.sleep(settleMillis);
+            long newSize = file.length(), newModified = file.lastModified();
+            stableIntervals = newSize > 0 && newSize == size && newModified == modified ? stableIntervals + 1 : 0;
+            size = newSize;
+            modified = newModified;
+            if (size == 0 && System.nanoTime() > deadline) {
+                throw new IOException(file.getName() + " is still empty");
+            }
+        }
+        return ImageUtilities.readMBF(file);
+    }
+
+    /**
+     * @return True if the path has an image extension
+     */
+    private static boolean isImage(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        return name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png");
+    }
+
+    /**
+     * Finishes the images in flight
+     */
+    @Override
+    public void close() throws InterruptedException {
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+        synchronized (output) {
+            output.flush();
+        }
+    }
+
+    /**
+     * Watches -DinputDir (default incoming) and identifies each image against the training gallery as it arrives,
+     * writing a JSON line per image to -Doutput (default stream-results.jsonl). Set the matches with -Dk, the in-flight
+     * window with -Dwindow and the workers with -Dthreads
+     */
+    public static void main(String[] args) throws Exception {
+        Path inputDir = new File(System.getProperty("inputDir", Main.PATH + "incoming")).toPath();
+        File outputFile = new File(System.getProperty("output", Main.PATH + "stream-results.jsonl"));
+        int k = Integer.getInteger("k", 1);
+        int threads = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
+        int windowSize = Integer.getInteger("window", threads * 2);
+        long settleMillis = Long.getLong("settleMs", 100);
+        int poseBatch = Integer.getInteger("poseBatch", 1);
+        long poseBatchWait = Long.getLong("poseBatchWaitMs", 5);
+        Float[][] temperatures = new Float[48][];
+        Main.generateTemperatures(temperatures);
+        Files.createDirectories(inputDir);
+
+        PipelineMetrics metrics = new PipelineMetrics();
+        ZooModel<Image, Joints> model = Main.loadModel();
+        try (PoseBatcher batcher = poseBatch > 1 ? new PoseBatcher(model, poseBatch, poseBatchWait) : null;
+             RecognitionService service = RecognitionService.fromTraining(model, threads, batcher, PersonSegmenter.fromProperties(), temperatures, metrics);
+             PrintWriter output = new PrintWriter(new FileWriter(outputFile, true));
+             StreamIngestor ingestor = new StreamIngestor(service, k, windowSize, threads, settleMillis, output, metrics)) {
+            // Stops watching on shutdown and waits for the images in flight and the metrics
+            Thread mainThread = Thread.currentThread();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                mainThread.interrupt();
+                try {
+                    mainThread.join();
+                } catch (InterruptedException ignored) { }
+            }));
+            System.out.println("Watching " + inputDir + " with " + service.size() + " enrolled FVs, results in " + outputFile);
+            try {
+                ingestor.watch(inputDir);
+            } catch (InterruptedException e) {
+                // The shutdown hook stops the watch, the images in flight are finished on close
+            }
+        } finally {
+            metrics.write(Main.PATH);
+            model.close();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+import java.util.ArrayList;
+import java.util.List;
+
+public class TopK {
+    private final int[] ids;
+    private final double[] distances;
+    private int count = 0;
+
+    /**
+     * Keeps the k smallest distances seen, ties keep the earliest offered
+     * @param k The number of matches
+     */
+    public TopK(int k) {
+        this.ids = new int[Math.max(k, 0)];
+        this.distances = new double[Math.max(k, 0)];
+    }
+
+    /**
+     * @param id The gallery id
+     * @param distance The distance to the probe
+     */
+    public void offer(int id, double distance) {
+        int k = ids.length;
+        if (count < k || (k > 0 && distance < distances[count - 1])) {
+            int position = count < k ? count++ : count - 1;
+            while (position > 0 && distance < distances[position - 1]) {
+                distances[position] = distances[position - 1];
+                ids[position] = ids[position - 1];
+                position--;
+            }
+            distances[position] = distance;
+            ids[position] = id;
+        }
+    }
+
+    /**
+     * @return The kth smallest distance, or infinity until k distances have been offered
+     */
+    public double worst() {
+        return count < ids.length ? Double.POSITIVE_INFINITY : (ids.length == 0 ? Double.NEGATIVE_INFINITY : distances[count - 1]);
+    }
+
+    /**
+     * @return The number of matches kept
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return The matches nearest first
+     */
+    public List<IdentificationEngine.Match> toMatches() {
+        List<IdentificationEngine.Match> matches = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            matches.add(new IdentificationEngine.Match(ids[i], distances[i]));
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,211 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class VantagePointTree implements GalleryIndex {
+    private static final int LEAF_SIZE = 16;
+
+    private final double epsilon;
+    private final Random random;
+    private int[] ids = new int[16];
+    private double[] vectors = new double[0];
+    private int size = 0, treeSize = 0, dimensions = 0;
+    private int[] nodeStart = new int[0], nodeEnd = new int[0], nodeLeft = new int[0], nodeRight = new int[0];
+    private double[] nodeRadius = new double[0];
+    private int root = -1, nodeCount = 0;
+
+    /**
+     * Creates a vantage-point tree. Approximate queries prune as if the current kth distance was divided by
+     * (1 + epsilon), so every match is within (1 + epsilon) of the true kth nearest distance
+     * @param epsilon The approximation factor for approximate queries
+     * @param seed The seed for choosing vantage points
+     */
+    public VantagePointTree(double epsilon, long seed) {
+        this.epsilon = epsilon;
+        this.random = new Random(seed);
+    }
+
+    @Override
+    public void build(int[] ids, double[] vectors, int dimensions) {
+        this.ids = Arrays.copyOf(ids, Math.max(ids.length, 16));
+        this.vectors = Arrays.copyOf(vectors, this.ids.length * dimensions);
+        this.size = ids.length;
+        this.dimensions = dimensions;
+        rebuild();
+    }
+
+    /**
+     * Inserted FVs are scanned linearly until there are enough of them to rebuild the tree
+     */
+    @Override
+    public void insert(int id, double[] vector) {
+        if (dimensions == 0) {
+            dimensions = vector.length;
+            vectors = new double[ids.length * dimensions];
+        }
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            vectors = Arrays.copyOf(vectors, ids.length * dimensions);
+        }
+        ids[size] = id;
+        System.arraycopy(vector, 0, vectors, size * dimensions, dimensions);
+        size++;
+
+        if (size - treeSize > Math.max(32, treeSize / 8)) {
+            rebuild();
+        }
+    }
+
+    @Override
+    public List<IdentificationEngine.Match> query(double[] probe, int k, boolean exact) {
+        TopK best = new TopK(Math.min(k, size));
+        search(root, probe, best, exact ? 1 : 1 + epsilon);
+
+        // FVs inserted since the last rebuild
+        for (int i = treeSize; i < size; i++) {
+            best.offer(ids[i], GalleryIndex.distance(vectors, i, dimensions, probe));
+        }
+        return best.toMatches();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Rebuilds the tree over every FV, then stores the rows in tree order so each subtree is contiguous
+     */
+    private void rebuild() {
+        int[] items = new int[size];
+        for (int i = 0; i < size; i++) {
+            items[i] = i;
+        }
+        nodeStart = new int[size];
+        nodeEnd = new int[size];
+        nodeLeft = new int[size];
+        nodeRight = new int[size];
+        nodeRadius = new double[size];
+        nodeCount = 0;
+        root = buildNode(items, new double[size], 0, size);
+        treeSize = size;
+
+        int[] orderedIds = new int[ids.length];
+        double[] orderedVectors = new double[vectors.length];
+        for (int i = 0; i < size; i++) {
+            orderedIds[i] = ids[items[i]];
+            System.arraycopy(vectors, items[i] * dimensions, orderedVectors, i * dimensions, dimensions);
+        }
+        ids = orderedIds;
+        vectors = orderedVectors;
+    }
+
+    /**
+     * Builds a node from a random vantage point, the closer half of the rest go left and the further half right.
+     * Small ranges become leaves that are scanned linearly
+     * @return The node, or -1 if the range is empty
+     */
+    private int buildNode(int[] items, double[] distances, int low, int high) {
+        if (low >= high) {
+            return -1;
+        }
+        int node = nodeCount++;
+        nodeStart[node] = low;
+        nodeEnd[node] = high;
+        nodeLeft[node] = -1;
+        nodeRight[node] = -1;
+        if (high - low <= LEAF_SIZE) {
+            return node;
+        }
+        swap(items, distances, low, low + random.nextInt(high - low));
+
+        int vantage = items[low] * dimensions;
+        for (int i = low + 1; i < high; i++) {
+            int offset = items[i] * dimensions;
+            double sum = 0;
+            for (int d = 0; d < dimensions; d++) {
+                double diff = vectors[offset + d] - vectors[vantage + d];
+                sum += diff * diff;
+            }
+            distances[i] = Math.sqrt(sum);
+        }
+
+        int median = (low + 1 + high) >>> 1;
+        select(items, distances, low + 1, high - 1, median);
+        nodeRadius[node] = distances[median];
+        nodeLeft[node] = buildNode(items, distances, low + 1, median);
+        nodeRight[node] = buildNode(items, distances, median, high);
+        return node;
+    }
+
+    /**
+     * Searches a subtree, skipping a side when no match within the current kth distance can be in it
+     */
+    private void search(int node, double[] probe, TopK best, double shrink) {
+        if (node < 0) {
+            return;
+        }
+        int start = nodeStart[node];
+        if (nodeEnd[node] - start <= LEAF_SIZE) {
+            for (int row = start; row < nodeEnd[node]; row++) {
+                best.offer(ids[row], GalleryIndex.distance(vectors, row, dimensions, probe));
+            }
+            return;
+        }
+
+        // Internal nodes hold their vantage point in their first row
+        double distance = GalleryIndex.distance(vectors, start, dimensions, probe);
+        best.offer(ids[start], distance);
+
+        double radius = nodeRadius[node];
+        if (distance < radius) {
+            if (distance - (best.worst() / shrink) <= radius) {
+                search(nodeLeft[node], probe, best, shrink);
+            }
+            if (distance + (best.worst() / shrink) >= radius) {
+                search(nodeRight[node], probe, best, shrink);
+            }
+        } else {
+            if (distance + (best.worst() / shrink) >= radius) {
+                search(nodeRight[node], probe, best, shrink);
+            }
+            if (distance - (best.worst() / shrink) <= radius) {
+                search(nodeLeft[node], probe, best, shrink);
+            }
+        }
+    }
+
+    /**
+     * Partially sorts the range so the kth position holds the kth smallest distance
+     */
+    private static void select(int[] items, double[] distances, int left, int right, int k) {
+        while (right > left) {
+            swap(items, distances, left + ((right - left) >>> 1), right);
+            double pivot = distances[right];
+            int store = left;
+            for (int i = left; i < right; i++) {
+                if (distances[i] < pivot) {
+                    swap(items, distances, store++, i);
+                }
+            }
+            swap(items, distances, right, store);
+
+            if (store == k) {
+                return;
+            } else if (k < store) {
+                right = store - 1;
+            } else {
+                left = store + 1;
+            }
+        }
+    }
+
+    private static void swap(int[] items, double[] distances, int a, int b) {
+        int item = items[a];
+        items[a] = items[b];
+        items[b] = item;
+        double distance = distances[a];
+        distances[a] = distances[b];
+        distances[b] = distance;
+    }
+}
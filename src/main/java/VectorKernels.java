@@ -0,0 +1,46 @@
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+class VectorKernels {
+    // Only loaded when DistanceKernels finds the module, so nothing else may reference the Vector API
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+    // Enough codes for one or more preferred float vectors, at least the 64 bit byte shape
+    private static final VectorSpecies<Byte> BYTES = VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(64, FLOATS.length() * Byte.SIZE)));
+    private static final int PARTS = BYTES.length() / FLOATS.length();
+
+    /**
+     * @see DistanceKernels#squaredDistance(float[], float[], int, int)
+     */
+    static float squaredDistance(float[] probe, float[] rows, int offset, int dimensions) {
+        FloatVector sum = FloatVector.zero(FLOATS);
+        int d = 0;
+        for (int bound = FLOATS.loopBound(dimensions); d < bound; d += FLOATS.length()) {
+            FloatVector diff = FloatVector.fromArray(FLOATS, probe, d).sub(FloatVector.fromArray(FLOATS, rows, offset + d));
+            sum = diff.fma(diff, sum);
+        }
+        return sum.reduceLanes(VectorOperators.ADD) + DistanceKernels.squaredDistanceScalar(probe, rows, offset, d, dimensions);
+    }
+
+    /**
+     * A byte vector of codes at a time, widened part by part into preferred float vectors, so the shapes follow the
+     * hardware instead of assuming 256 bit vectors
+     * @see DistanceKernels#squaredDistance(float[], float[], byte[], int, int)
+     */
+    static float squaredDistance(float[] probe, float[] weights, byte[] rows, int offset, int dimensions) {
+        FloatVector sum = FloatVector.zero(FLOATS);
+        int d = 0;
+        for (int bound = BYTES.loopBound(dimensions); d < bound; d += BYTES.length()) {
+            ByteVector codes = ByteVector.fromArray(BYTES, rows, offset + d);
+            for (int part = 0; part < PARTS; part++) {
+                int p = d + (part * FLOATS.length());
+                FloatVector diff = FloatVector.fromArray(FLOATS, probe, p).sub((FloatVector) codes.convertShape(VectorOperators.B2F, FLOATS, part));
+                sum = diff.mul(diff).fma(FloatVector.fromArray(FLOATS, weights, p), sum);
+            }
+        }
+        return sum.reduceLanes(VectorOperators.ADD) + DistanceKernels.squaredDistanceScalar(probe, weights, rows, offset, d, dimensions);
+    }
+}
@@ -0,0 +1,209 @@
+import java.util.Arrays;
+
+public class VerificationMetrics {
+    private final double[] interDistances, intraDistances;
+    private final double[] thresholds, FARs, FRRs;
+    private final double EER, EERThreshold, AUC;
+
+    /**
+     * Computes the FAR/FRR curve, EER and AUC in a single merge over the sorted distances.
+     * As in Main, FAR counts inter distances above the threshold and FRR counts intra distances below it
+     * @param interDistances The distances between FVs of the same subject
+     * @param intraDistances The distances between FVs of different subjects
+     */
+    public VerificationMetrics(double[] interDistances, double[] intraDistances) {
+        if (interDistances.length == 0 || intraDistances.length == 0) {
+            throw new IllegalArgumentException("Both distance sets must be non-empty");
+        }
+        this.interDistances = interDistances.clone();
+        this.intraDistances = intraDistances.clone();
+        Arrays.sort(this.interDistances);
+        Arrays.sort(this.intraDistances);
+
+        double[] inter = this.interDistances, intra = this.intraDistances;
+        int interSize = inter.length, intraSize = intra.length;
+
+        // Two points per distinct distance (at it and just above it) plus one below the smallest
+        int capacity = (2 * (interSize + intraSize)) + 1;
+        double[] thresholds = new double[capacity], FARs = new double[capacity], FRRs = new double[capacity];
+        int count = 0;
+
+        // Below every distance nothing is rejected and everything is accepted
+        double first = Math.min(inter[0], intra[0]);
+        thresholds[count] = Math.nextDown(first);
+        FARs[count] = 1;
+        FRRs[count] = 0;
+        count++;
+
+        int i = 0, j = 0;
+        while (i < interSize || j < intraSize) {
+            double value = Math.min(i < interSize ? inter[i] : Double.POSITIVE_INFINITY, j < intraSize ? intra[j] : Double.POSITIVE_INFINITY);
+            int intraBelow = j;
+
+            // Skip every distance equal to this value
+            while (i < interSize && inter[i] == value) {
+                i++;
+            }
+            while (j < intraSize && intra[j] == value) {
+                j++;
+            }
+            double FAR = (interSize - i) / (double) interSize;
+
+            // At the value, equal distances count as neither above nor below
+            thresholds[count] = value;
+            FARs[count] = FAR;
+            FRRs[count] = intraBelow / (double) intraSize;
+            count++;
+
+            // Just above the value, up to the next distinct distance
+            double next = Math.min(i < interSize ? inter[i] : Double.POSITIVE_INFINITY, j < intraSize ? intra[j] : Double.POSITIVE_INFINITY);
+            thresholds[count] = next == Double.POSITIVE_INFINITY ? Math.nextUp(value) : value + ((next - value) / 2);
+            FARs[count] = FAR;
+            FRRs[count] = j / (double) intraSize;
+            count++;
+        }
+        this.thresholds = Arrays.copyOf(thresholds, count);
+        this.FARs = Arrays.copyOf(FARs, count);
+        this.FRRs = Arrays.copyOf(FRRs, count);
+
+        // Equal error rate at the point where FAR and FRR are closest
+        int best = 0;
+        for (int k = 1; k < count; k++) {
+            if (Math.abs(FARs[k] - FRRs[k]) < Math.abs(FARs[best] - FRRs[best])) {
+                best = k;
+            }
+        }
+        this.EER = (FARs[best] + FRRs[best]) / 2;
+        this.EERThreshold = thresholds[best];
+
+        // Area under the ROC curve, the chance an inter distance is below an intra distance
+        double wins = 0;
+        int below = 0, belowOrEqual = 0;
+        for (double distance : inter) {
+            while (below < intraSize && intra[below] < distance) {
+                below++;
+            }
+            while (belowOrEqual < intraSize && intra[belowOrEqual] <= distance) {
+                belowOrEqual++;
+            }
+            wins += (intraSize - belowOrEqual) + ((belowOrEqual - below) / 2.0);
+        }
+        this.AUC = wins / ((double) interSize * intraSize);
+    }
+
+    /**
+     * @param threshold The threshold
+     * @return The fraction of inter distances above the threshold
+     */
+    public double calculateFAR(double threshold) {
+        return (interDistances.length - upperBound(interDistances, threshold)) / (double) interDistances.length;
+    }
+
+    /**
+     * @param threshold The threshold
+     * @return The fraction of intra distances below the threshold
+     */
+    public double calculateFRR(double threshold) {
+        return lowerBound(intraDistances, threshold) / (double) intraDistances.length;
+    }
+
+    /**
+     * @param targetFAR The highest acceptable FAR
+     * @return The smallest threshold on the curve with a FAR no higher than the target
+     */
+    public double thresholdAtFAR(double targetFAR) {
+        for (int k = 0; k < thresholds.length; k++) {
+            if (FARs[k] <= targetFAR) {
+                return thresholds[k];
+            }
+        }
+        return thresholds[thresholds.length - 1];
+    }
+
+    /**
+     * @param targetFRR The highest acceptable FRR
+     * @return The largest threshold on the curve with a FRR no higher than the target
+     */
+    public double thresholdAtFRR(double targetFRR) {
+        for (int k = thresholds.length - 1; k >= 0; k--) {
+            if (FRRs[k] <= targetFRR) {
+                return thresholds[k];
+            }
+        }
+        return thresholds[0];
+    }
+
+    /**
+     * @return The equal error rate (0 to 1)
+     */
+    public double getEER() {
+        return EER;
+    }
+
+    /**
+     * @return The threshold the equal error rate occurs at
+     */
+    public double getEERThreshold() {
+        return EERThreshold;
+    }
+
+    /**
+     * @return The area under the ROC curve (0 to 1)
+     */
+    public double getAUC() {
+        return AUC;
+    }
+
+    /**
+     * @return The curve thresholds in ascending order
+     */
+    public double[] getThresholds() {
+        return thresholds.clone();
+    }
+
+    /**
+     * @return The FAR at each curve threshold
+     */
+    public double[] getFARs() {
+        return FARs.clone();
+    }
+
+    /**
+     * @return The FRR at each curve threshold
+     */
+    public double[] getFRRs() {
+        return FRRs.clone();
+    }
+
+    /**
+     * @return The number of distances less than or equal to the value
+     */
+    private static int upperBound(double[] sorted, double value) {
+        int low = 0, high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] <= value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return The number of distances less than the value
+     */
+    private static int lowerBound(double[] sorted, double value) {
+        int low = 0, high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
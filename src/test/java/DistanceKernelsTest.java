@@ -0,0 +1,36 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DistanceKernelsTest {
+    /**
+     * The kernels in use, vector when the module is present, agree with the scalar loops up to float rounding for
+     * lengths around every vector width, including the tails
+     */
+    @Test
+    void matchesScalarKernels() {
+        Random random = new Random(15);
+        for (int dimensions = 1; dimensions <= 150; dimensions++) {
+            float[] probe = new float[dimensions], weights = new float[dimensions], floatRows = new float[dimensions * 3];
+            byte[] byteRows = new byte[dimensions * 3];
+            for (int d = 0; d < dimensions; d++) {
+                probe[d] = (random.nextFloat() * 255) - 128;
+                weights[d] = random.nextFloat();
+            }
+            for (int i = 0; i < floatRows.length; i++) {
+                floatRows[i] = (random.nextFloat() * 255) - 128;
+            }
+            random.nextBytes(byteRows);
+
+            for (int row = 0; row < 3; row++) {
+                int offset = row * dimensions;
+                float expected = DistanceKernels.squaredDistanceScalar(probe, floatRows, offset, 0, dimensions);
+                assertEquals(expected, DistanceKernels.squaredDistance(probe, floatRows, offset, dimensions), expected * 1e-5, "float32 at " + dimensions);
+                expected = DistanceKernels.squaredDistanceScalar(probe, weights, byteRows, offset, 0, dimensions);
+                assertEquals(expected, DistanceKernels.squaredDistance(probe, weights, byteRows, offset, dimensions), expected * 1e-5, "int8 at " + dimensions);
+            }
+        }
+    }
+}
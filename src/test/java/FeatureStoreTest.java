@@ -0,0 +1,71 @@
+import org.junit.jupiter.api.Test;
+import org.openimaj.feature.DoubleFV;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class FeatureStoreTest {
+    /**
+     * Two stores of the same file, as two processes sharing the cache, keep each other's records
+     */
+    @Test
+    void sharedFileKeepsEveryAppend() throws IOException {
+        File directory = Files.createTempDirectory("features").toFile();
+        try (FeatureStore first = new FeatureStore(directory, "config", 3);
+             FeatureStore second = new FeatureStore(directory, "config", 3)) {
+            for (int i = 0; i < 10; i++) {
+                (i % 2 == 0 ? first : second).put(key(i), feature(i));
+            }
+        }
+
+        try (FeatureStore reopened = new FeatureStore(directory, "config", 3)) {
+            assertEquals(10, reopened.size());
+            for (int i = 0; i < 10; i++) {
+                assertArrayEquals(feature(i).values, reopened.get(key(i)).values, "record " + i);
+            }
+        }
+    }
+
+    /**
+     * A record cut short by a writer that died is dropped, and the next append replaces it
+     */
+    @Test
+    void dropsPartialRecord() throws IOException {
+        File directory = Files.createTempDirectory("features").toFile();
+        try (FeatureStore store = new FeatureStore(directory, "config", 3)) {
+            store.put(key(0), feature(0));
+            store.put(key(1), feature(1));
+        }
+        File file = directory.listFiles()[0];
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.setLength(raw.length() - 5);
+        }
+
+        try (FeatureStore store = new FeatureStore(directory, "config", 3)) {
+            assertEquals(1, store.size());
+            assertNull(store.get(key(1)));
+            store.put(key(2), feature(2));
+        }
+        try (FeatureStore store = new FeatureStore(directory, "config", 3)) {
+            assertEquals(2, store.size());
+            assertArrayEquals(feature(2).values, store.get(key(2)).values);
+        }
+    }
+
+    private static String key(int i) {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) i;
+        return HexFormat.of().formatHex(hash);
+    }
+
+    private static DoubleFV feature(int i) {
+        return new DoubleFV(new double[]{i, i + 0.5, -i});
+    }
+}
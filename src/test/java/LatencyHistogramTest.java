@@ -0,0 +1,43 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+    @Test
+    void bucketsByDoublingBounds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(LatencyHistogram.BASE_NANOS);
+        histogram.record(LatencyHistogram.BASE_NANOS + 1);
+        histogram.record(4 * LatencyHistogram.BASE_NANOS);
+        assertEquals(1, histogram.getBucketCount(0));
+        assertEquals(1, histogram.getBucketCount(1));
+        assertEquals(1, histogram.getBucketCount(2));
+        assertEquals(3, histogram.getCount());
+        assertEquals(6 * LatencyHistogram.BASE_NANOS + 1, histogram.getSumNanos());
+    }
+
+    @Test
+    void percentileIsTheUpperBoundOfItsBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(50));
+        for (int i = 0; i < 99; i++) {
+            histogram.record(LatencyHistogram.BASE_NANOS);
+        }
+        histogram.record(3 * LatencyHistogram.BASE_NANOS);
+        assertEquals(LatencyHistogram.BASE_NANOS / 1e6, histogram.percentile(50));
+        assertEquals(LatencyHistogram.BASE_NANOS / 1e6, histogram.percentile(99));
+        assertEquals(4 * LatencyHistogram.BASE_NANOS / 1e6, histogram.percentile(100));
+    }
+
+    @Test
+    void overflowPercentileIsNullInJson() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        metrics.stage("slow").record(Long.MAX_VALUE / 2);
+        assertEquals(Double.POSITIVE_INFINITY, metrics.stage("slow").percentile(99));
+        String json = metrics.toJson();
+        assertTrue(json.contains("\"p99Ms\": null"), json);
+        assertFalse(json.contains("Infinity"), json);
+    }
+}
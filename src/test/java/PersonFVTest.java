@@ -0,0 +1,277 @@
+import org.junit.jupiter.api.Test;
+import org.openimaj.image.pixel.Pixel;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PersonFVTest {
+    private static final Float[][] TEMPERATURES = temperatures(48);
+
+    /**
+     * The buffered silhouette matches the PolarPixel list, atan and Math.pow version bit for bit, including ties in
+     * angle, repeated pixels, a pixel on the centroid and tiny or empty boundaries
+     */
+    @Test
+    void silhouetteDistancesMatchBaseline() {
+        Random random = new Random(14);
+        Pixel centroid = new Pixel(100, 100);
+        for (int trial = 0; trial < 500; trial++) {
+            int size = trial < 8 ? trial : random.nextInt(trial % 3 == 0 ? 10 : 2000);
+            List<Pixel> boundary = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                switch (random.nextInt(5)) {
+                    // Same angle at different radii
+                    case 0 -> {
+                        int step = 1 + random.nextInt(40);
+                        boundary.add(new Pixel(100 + step, 100 - step));
+                    }
+                    // On an axis
+                    case 1 -> boundary.add(random.nextBoolean() ? new Pixel(100, random.nextInt(200)) : new Pixel(random.nextInt(200), 100));
+                    // A repeat of an earlier pixel
+                    case 2 -> boundary.add(boundary.isEmpty() ? new Pixel(100, 100) : boundary.get(random.nextInt(boundary.size())));
+                    default -> boundary.add(new Pixel(random.nextInt(200), random.nextInt(200)));
+                }
+            }
+            if (trial % 7 == 0) {
+                boundary.add(random.nextInt(boundary.size() + 1), new Pixel(100, 100));
+            }
+            assertArrayEquals(baselineSilhouetteDistances(boundary, centroid), PersonFV.silhouetteDistances(boundary, centroid), "trial " + trial);
+        }
+    }
+
+    /**
+     * An empty boundary on a thread's first call gives zero bins, as the baseline did
+     */
+    @Test
+    void emptyBoundaryOnFreshThread() throws InterruptedException {
+        double[][] result = new double[1][];
+        Thread thread = new Thread(() -> result[0] = PersonFV.silhouetteDistances(new ArrayList<>(), new Pixel(0, 0)));
+        thread.start();
+        thread.join();
+        assertArrayEquals(new double[48], result[0]);
+    }
+
+    /**
+     * The joint pair table matches the 35 hand-written distances
+     */
+    @Test
+    void jointDistancesMatchBaseline() {
+        Random random = new Random(15);
+        for (int trial = 0; trial < 500; trial++) {
+            List<Pixel> joints = new ArrayList<>();
+            for (int i = 0; i < 17; i++) {
+                joints.add(new Pixel(random.nextInt(trial % 2 == 0 ? 5 : 800), random.nextInt(trial % 2 == 0 ? 5 : 1300)));
+            }
+            PersonFV.PoseModel poseModel = PersonFV.toPoseModel(joints);
+            Pixel centroid = new Pixel(random.nextInt(800), random.nextInt(1300));
+            assertArrayEquals(baselineJointDistances(poseModel, centroid), PersonFV.jointDistances(poseModel, centroid), "trial " + trial);
+        }
+    }
+
+    /**
+     * The explicit range check counts the same bands as the exception-driven loop it replaced
+     */
+    @Test
+    void temperatureHistogramMatchesBaseline() {
+        Random random = new Random(12);
+        long outOfRange = 0;
+        for (int trial = 0; trial < 50; trial++) {
+            int width = 20 + random.nextInt(40), height = 20 + random.nextInt(60);
+            PersonMask mask = new PersonMask(width, height);
+
+            // A block that does not reach the bottom, so pixels near the top are above the bounding box scale
+            int x0 = random.nextInt(width / 2), y0 = random.nextInt(height / 2);
+            int x1 = x0 + 1 + random.nextInt(width - x0 - 1), y1 = y0 + 1 + random.nextInt(height - y0 - 1);
+            for (int y = y0; y <= y1; y++) {
+                for (int x = x0; x <= x1; x++) {
+                    if (random.nextInt(4) > 0) {
+                        mask.add(x, y);
+                    }
+                }
+            }
+            if (mask.getArea() == 0) {
+                continue;
+            }
+            Pixel centroid = mask.calculateCentroidPixel();
+
+            PipelineMetrics metrics = new PipelineMetrics();
+            long[] baselineOutOfRange = new long[1];
+            assertArrayEquals(baselineTemperatureHistogram(mask, centroid, baselineOutOfRange),
+                    PersonFV.temperatureHistogram(mask, centroid, TEMPERATURES, null, metrics), "trial " + trial);
+            assertEquals(baselineOutOfRange[0], metrics.getCount("temperatureOutOfRangePixels"), "trial " + trial);
+            outOfRange += baselineOutOfRange[0];
+        }
+        assertTrue(outOfRange > 0, "no out of range pixels were exercised");
+    }
+
+    /**
+     * The silhouette before the reused buffers
+     */
+    private static double[] baselineSilhouetteDistances(List<Pixel> boundary, Pixel centroid) {
+        int maxBins = 56, halfBlankBinSize = 2, binCount = 0, backCount = 0;
+        double[] doubleDistances = new double[maxBins - (halfBlankBinSize * 4)];
+        ArrayList<PolarPixel> borderPixels = new ArrayList<>();
+
+        for (Pixel pixel : boundary) {
+            borderPixels.add(new PolarPixel(baselineDistance(pixel, centroid), baselineAngle(pixel, centroid)));
+        }
+        borderPixels.sort(Comparator.comparingDouble(PolarPixel::angle));
+
+        ArrayList<Double> bin = new ArrayList<>();
+        for (PolarPixel pixel : borderPixels) {
+            bin.add(pixel.radius());
+
+            if ((pixel.angle() > (((2 * Math.PI) / maxBins) * (binCount + 1))) || pixel == borderPixels.get(borderPixels.size() - 1)) {
+                double sum = 0;
+                for (double value : bin) {
+                    sum += value;
+                }
+
+                if ((binCount > halfBlankBinSize && binCount < ((maxBins / 2) - halfBlankBinSize))
+                        || (binCount > ((maxBins / 2) + halfBlankBinSize) && binCount < (maxBins - halfBlankBinSize))) {
+                    doubleDistances[binCount - backCount] = sum / bin.size();
+                } else {
+                    backCount++;
+                }
+                binCount++;
+                bin.clear();
+            }
+        }
+        return doubleDistances;
+    }
+
+    /**
+     * The joint distances before the pair table
+     */
+    private static double[] baselineJointDistances(PersonFV.PoseModel poseModel, Pixel centroid) {
+        double[] jointsArray = new double[48];
+
+        // Invariant features to centroid
+        jointsArray[0] = baselineDistance(poseModel.nose(), centroid);
+        jointsArray[1] = baselineDistance(poseModel.rightEye(), centroid);
+        jointsArray[2] = baselineDistance(poseModel.leftEye(), centroid);
+        jointsArray[3] = baselineDistance(poseModel.rightEar(), centroid);
+        jointsArray[4] = baselineDistance(poseModel.leftEar(), centroid);
+        jointsArray[5] = baselineDistance(poseModel.rightShoulder(), centroid);
+        jointsArray[6] = baselineDistance(poseModel.leftShoulder(), centroid);
+        jointsArray[7] = baselineDistance(poseModel.rightElbow(), centroid);
+        jointsArray[8] = baselineDistance(poseModel.leftElbow(), centroid);
+        jointsArray[9] = baselineDistance(poseModel.rightHip(), centroid);
+        jointsArray[10] = baselineDistance(poseModel.leftHip(), centroid);
+        jointsArray[11] = baselineDistance(poseModel.rightKnee(), centroid);
+        jointsArray[12] = baselineDistance(poseModel.leftKnee(), centroid);
+        jointsArray[13] = baselineDistance(poseModel.rightAnkle(), centroid);
+        jointsArray[14] = baselineDistance(poseModel.leftAnkle(), centroid);
+
+        // Inter-face distances
+        jointsArray[15] = baselineDistance(poseModel.leftEar(), poseModel.leftEye());
+        jointsArray[16] = baselineDistance(poseModel.leftEye(), poseModel.nose());
+        jointsArray[17] = baselineDistance(poseModel.nose(), poseModel.rightEye());
+        jointsArray[18] = baselineDistance(poseModel.rightEye(), poseModel.rightEar());
+        jointsArray[19] = baselineDistance(poseModel.leftEar(), poseModel.rightEar());
+
+        // Body widths
+        jointsArray[20] = baselineDistance(poseModel.leftShoulder(), poseModel.rightShoulder());
+        jointsArray[21] = baselineDistance(poseModel.leftElbow(), poseModel.rightElbow());
+        jointsArray[22] = baselineDistance(poseModel.leftHip(), poseModel.rightHip());
+        jointsArray[23] = baselineDistance(poseModel.leftKnee(), poseModel.rightKnee());
+        jointsArray[24] = baselineDistance(poseModel.leftAnkle(), poseModel.rightAnkle());
+
+        // Body heights
+        jointsArray[25] = baselineDistance(poseModel.leftElbow(), poseModel.leftShoulder());
+        jointsArray[26] = baselineDistance(poseModel.rightElbow(), poseModel.rightShoulder());
+        jointsArray[27] = baselineDistance(poseModel.leftHip(), poseModel.leftShoulder());
+        jointsArray[28] = baselineDistance(poseModel.rightHip(), poseModel.rightShoulder());
+        jointsArray[29] = baselineDistance(poseModel.leftHip(), poseModel.leftElbow());
+        jointsArray[30] = baselineDistance(poseModel.rightHip(), poseModel.rightElbow());
+        jointsArray[31] = baselineDistance(poseModel.leftHip(), poseModel.leftKnee());
+        jointsArray[32] = baselineDistance(poseModel.rightHip(), poseModel.rightKnee());
+        jointsArray[33] = baselineDistance(poseModel.leftKnee(), poseModel.leftAnkle());
+        jointsArray[34] = baselineDistance(poseModel.rightKnee(), poseModel.rightAnkle());
+
+        for (int i = 35; i < 48; i++) {
+            jointsArray[i] = 0;
+        }
+        return jointsArray;
+    }
+
+    private static double baselineDistance(Pixel pixelA, Pixel pixelB) {
+        return Math.sqrt(Math.pow(pixelA.getX() - pixelB.getX(), 2) + Math.pow(pixelA.getY() - pixelB.getY(), 2));
+    }
+
+    private static double baselineAngle(Pixel pixelA, Pixel pixelB) {
+        double xDiff = pixelA.getX() - pixelB.getX(), yDiff = pixelA.getY() - pixelB.getY();
+        double angle = Math.atan(yDiff / xDiff);
+
+        if (xDiff < 0) {
+            angle += Math.PI;
+        } else if (xDiff > 0 && yDiff < 0) {
+            angle += 2 * Math.PI;
+        }
+        if (xDiff == 0 && yDiff > 0) {
+            angle = Math.PI / 2;
+        } else if (xDiff == 0 && yDiff < 0) {
+            angle = 3 * (Math.PI / 2);
+        } else if (xDiff < 0 && yDiff == 0) {
+            angle = Math.PI;
+        } else if (xDiff > 0 && yDiff == 0) {
+            angle = 0;
+        }
+        return angle;
+    }
+
+    /**
+     * The temperature loop before the range check, out of range bands were found by catching the exception
+     */
+    private static double[] baselineTemperatureHistogram(PersonMask mask, Pixel centroid, long[] outOfRange) {
+        float boundingBoxHeight = mask.calculateRegularBoundingBox().getHeight();
+        double[] temperatureCounts = new double[TEMPERATURES.length];
+        for (int y = 0; y < mask.getHeight(); y++) {
+            for (int x = 0; x < mask.getWidth(); x++) {
+                if (mask.contains(x, y)) {
+                    double divide = ((float) mask.getHeight() - (float) y) / boundingBoxHeight;
+                    double doubleIndex = (divide * TEMPERATURES.length) / 2f;
+                    int index = (int) Math.floor(doubleIndex);
+                    if (x > centroid.getX()) {
+                        index += TEMPERATURES.length / 2f;
+                    }
+                    try {
+                        Float[] temperature = TEMPERATURES[index];
+                        if (temperatureCounts[index] == 0) {
+                            temperatureCounts[index] = 1;
+                        } else {
+                            temperatureCounts[index] = temperatureCounts[index] + 1;
+                        }
+                    } catch (Exception e) {
+                        outOfRange[0]++;
+                    }
+                }
+            }
+        }
+        return temperatureCounts;
+    }
+
+    /**
+     * The baseline's pixel with polar coordinates
+     * @param radius
+     * @param angle
+     */
+    private record PolarPixel(double radius, double angle) { }
+
+    /**
+     * @return Distinct colours, only their count matters here
+     */
+    private static Float[][] temperatures(int count) {
+        Float[][] temperatures = new Float[count][];
+        for (int i = 0; i < count; i++) {
+            temperatures[i] = new Float[]{i / (float) count, 0f, 1 - (i / (float) count)};
+        }
+        return temperatures;
+    }
+}
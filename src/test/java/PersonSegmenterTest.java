@@ -0,0 +1,92 @@
+import org.junit.jupiter.api.Test;
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+import org.openimaj.math.geometry.shape.Rectangle;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PersonSegmenterTest {
+    /**
+     * The labels of an image do not depend on which images were segmented before it
+     */
+    @Test
+    void centroidsComeFromTheReferenceOnly() {
+        MBFImage reference = person(new Random(1)), first = person(new Random(2)), second = person(new Random(3));
+        PersonSegmenter inOrder = learnt(reference), reversed = learnt(reference);
+        double[] firstLabels = labels(inOrder, first), secondLabels = labels(inOrder, second);
+        assertArrayEquals(secondLabels, labels(reversed, second));
+        assertArrayEquals(firstLabels, labels(reversed, first));
+    }
+
+    @Test
+    void centroidsModeNeedsLearning() {
+        PersonSegmenter segmenter = new PersonSegmenter(PersonSegmenter.Mode.CENTROIDS, 4, null);
+        assertTrue(segmenter.needsCentroids());
+        assertThrows(IllegalStateException.class, () -> segmenter.segment(person(new Random(4))));
+        segmenter.learnCentroids(person(new Random(5)));
+        assertFalse(segmenter.needsCentroids());
+        assertTrue(segmenter.toString().endsWith(",reference=image0"));
+    }
+
+    @Test
+    void rejectsBadRegions() {
+        assertThrows(IllegalArgumentException.class, () -> new PersonSegmenter(PersonSegmenter.Mode.DOWNSAMPLED, 4, new Rectangle(0, 0, 0, 10)));
+        PersonSegmenter outside = new PersonSegmenter(PersonSegmenter.Mode.DOWNSAMPLED, 4, new Rectangle(500, 500, 10, 10));
+        assertThrows(IllegalArgumentException.class, () -> outside.segment(person(new Random(6))));
+
+        System.setProperty("segmentation", "downsampled");
+        System.setProperty("segmentationRoi", "1,2,3");
+        try {
+            assertThrows(IllegalArgumentException.class, PersonSegmenter::fromProperties);
+            System.setProperty("segmentationRoi", "1,2,-3,4");
+            assertThrows(IllegalArgumentException.class, PersonSegmenter::fromProperties);
+        } finally {
+            System.clearProperty("segmentation");
+            System.clearProperty("segmentationRoi");
+        }
+    }
+
+    private static PersonSegmenter learnt(MBFImage reference) {
+        PersonSegmenter segmenter = new PersonSegmenter(PersonSegmenter.Mode.CENTROIDS, 4, null);
+        segmenter.learnCentroids(reference);
+        return segmenter;
+    }
+
+    /**
+     * @return A noisy image of a bright block on a dark background
+     */
+    private static MBFImage person(Random random) {
+        MBFImage image = new MBFImage(64, 96, ColourSpace.RGB);
+        int left = 16 + random.nextInt(16), top = 16 + random.nextInt(32);
+        for (int band = 0; band < 3; band++) {
+            FImage pixels = image.getBand(band);
+            for (int y = 0; y < 96; y++) {
+                for (int x = 0; x < 64; x++) {
+                    boolean inside = x >= left && x < left + 16 && y >= top && y < top + 40;
+                    pixels.pixels[y][x] = (inside ? 80f : 20f) + (random.nextFloat() * 10f);
+                }
+            }
+        }
+        return image;
+    }
+
+    /**
+     * @return The labels, row-major
+     */
+    private static double[] labels(PersonSegmenter segmenter, MBFImage image) {
+        float[][] pixels = segmenter.segment(image).pixels;
+        double[] labels = new double[pixels.length * pixels[0].length];
+        for (int y = 0; y < pixels.length; y++) {
+            for (int x = 0; x < pixels[y].length; x++) {
+                labels[(y * pixels[y].length) + x] = pixels[y][x];
+            }
+        }
+        return labels;
+    }
+}
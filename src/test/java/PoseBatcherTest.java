@@ -0,0 +1,75 @@
+import ai.djl.modality.cv.Image;
+import ai.djl.modality.cv.output.Joints;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PoseBatcherTest {
+    /**
+     * Every request accepted while close races the submitters is answered by the time close returns
+     */
+    @Test
+    void closeRacingSubmitLeavesNoRequestWaiting() throws Exception {
+        ExecutorService submitters = Executors.newFixedThreadPool(4);
+        try {
+            for (int round = 0; round < 300; round++) {
+                PoseBatcher batcher = new PoseBatcher(new EmptyEstimator(), 2, 0);
+                List<Future<List<CompletableFuture<Joints>>>> accepted = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    accepted.add(submitters.submit(() -> {
+                        List<CompletableFuture<Joints>> futures = new ArrayList<>();
+                        while (true) {
+                            try {
+                                futures.add(batcher.submit(null));
+                            } catch (IllegalStateException e) {
+                                return futures;
+                            }
+                        }
+                    }));
+                }
+                Thread.sleep(round % 3);
+                batcher.close();
+
+                for (Future<List<CompletableFuture<Joints>>> future : accepted) {
+                    for (CompletableFuture<Joints> joints : future.get()) {
+                        assertTrue(joints.isDone(), "request left waiting in round " + round);
+                    }
+                }
+            }
+        } finally {
+            submitters.shutdownNow();
+        }
+    }
+
+    @Test
+    void rejectsSubmitAfterClose() {
+        PoseBatcher batcher = new PoseBatcher(new EmptyEstimator(), 2, 0);
+        batcher.close();
+        assertThrows(IllegalStateException.class, () -> batcher.submit(null));
+    }
+
+    /**
+     * Answers every image with no joints
+     */
+    private static class EmptyEstimator implements PoseBatcher.BatchEstimator {
+        @Override
+        public List<Joints> batchPredict(List<Image> images) {
+            List<Joints> joints = new ArrayList<>(images.size());
+            for (int i = 0; i < images.size(); i++) {
+                joints.add(new Joints(new ArrayList<>()));
+            }
+            return joints;
+        }
+
+        @Override
+        public void close() { }
+    }
+}
@@ -0,0 +1,32 @@
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RecognitionServiceTest {
+    @Test
+    void decodesQueryAfterSplitting() {
+        Map<String, String> parameters = RecognitionService.query(URI.create("/enroll?subject=a%26b%3Dc&note=two+words&k=5&flag"));
+        assertEquals("a&b=c", parameters.get("subject"));
+        assertEquals("two words", parameters.get("note"));
+        assertEquals("5", parameters.get("k"));
+        assertEquals("", parameters.get("flag"));
+        assertEquals(4, parameters.size());
+    }
+
+    @Test
+    void escapesJsonStrings() {
+        assertEquals("null", RecognitionService.jsonString(null));
+        assertEquals("\"a\\\"b\\\\c\"", RecognitionService.jsonString("a\"b\\c"));
+        assertEquals("\"\\n\\r\\t\\u0000\\u001f\"", RecognitionService.jsonString("\n\r\t\u0000\u001f"));
+    }
+
+    @Test
+    void writesNonFiniteNumbersAsNull() {
+        assertEquals("1.5", RecognitionService.jsonNumber(1.5));
+        assertEquals("null", RecognitionService.jsonNumber(Double.POSITIVE_INFINITY));
+        assertEquals("null", RecognitionService.jsonNumber(Double.NaN));
+    }
+}
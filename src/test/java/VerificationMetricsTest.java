@@ -0,0 +1,115 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VerificationMetricsTest {
+    /**
+     * The merged curve should reach the same closest FAR/FRR point as sweeping every threshold that can change them
+     */
+    @Test
+    void matchesBruteForceSweep() {
+        Random random = new Random(5);
+        for (int trial = 0; trial < 200; trial++) {
+            // Few distinct levels so many distances tie, within and across the sets
+            int levels = 1 + random.nextInt(trial % 2 == 0 ? 5 : 500);
+            double[] inter = randomDistances(random, 1 + random.nextInt(40), levels, 0);
+            double[] intra = randomDistances(random, 1 + random.nextInt(40), levels, 0.3);
+            VerificationMetrics metrics = new VerificationMetrics(inter, intra);
+
+            double bestGap = Double.MAX_VALUE;
+            for (double threshold : candidateThresholds(inter, intra)) {
+                double FAR = bruteFAR(inter, threshold), FRR = bruteFRR(intra, threshold);
+                assertEquals(FAR, metrics.calculateFAR(threshold), "FAR at " + threshold);
+                assertEquals(FRR, metrics.calculateFRR(threshold), "FRR at " + threshold);
+                bestGap = Math.min(bestGap, Math.abs(FAR - FRR));
+            }
+
+            // The EER threshold gives the smallest gap and the EER is the mean of its FAR and FRR
+            double threshold = metrics.getEERThreshold();
+            double FAR = bruteFAR(inter, threshold), FRR = bruteFRR(intra, threshold);
+            assertEquals(bestGap, Math.abs(FAR - FRR), "gap in trial " + trial);
+            assertEquals((FAR + FRR) / 2, metrics.getEER(), "EER in trial " + trial);
+
+            // Every curve point is what the threshold actually gives
+            double[] thresholds = metrics.getThresholds(), FARs = metrics.getFARs(), FRRs = metrics.getFRRs();
+            for (int k = 0; k < thresholds.length; k++) {
+                assertEquals(bruteFAR(inter, thresholds[k]), FARs[k], "curve FAR at " + thresholds[k]);
+                assertEquals(bruteFRR(intra, thresholds[k]), FRRs[k], "curve FRR at " + thresholds[k]);
+                assertTrue(k == 0 || thresholds[k] > thresholds[k - 1], "thresholds ascending");
+            }
+
+            assertEquals(bruteAUC(inter, intra), metrics.getAUC(), 1e-12, "AUC in trial " + trial);
+        }
+    }
+
+    /**
+     * Distances above 1 are on the curve too, the old sweep stopped at 1
+     */
+    @Test
+    void coversDistancesAboveOne() {
+        VerificationMetrics metrics = new VerificationMetrics(new double[]{1.5, 2.5, 3.5}, new double[]{4.5, 5.5, 6.5});
+        assertEquals(0, metrics.getEER());
+        assertEquals(1, metrics.getAUC());
+    }
+
+    @Test
+    void rejectsEmptySets() {
+        assertThrows(IllegalArgumentException.class, () -> new VerificationMetrics(new double[0], new double[]{1}));
+        assertThrows(IllegalArgumentException.class, () -> new VerificationMetrics(new double[]{1}, new double[0]));
+    }
+
+    /**
+     * @return Distances on a grid of levels, so they tie
+     */
+    private static double[] randomDistances(Random random, int count, int levels, double shift) {
+        double[] distances = new double[count];
+        for (int i = 0; i < count; i++) {
+            distances[i] = (random.nextInt(levels) / (double) levels) + (shift * random.nextDouble());
+        }
+        return distances;
+    }
+
+    /**
+     * @return Every distance, the midpoints between them and a threshold either side of them all
+     */
+    private static double[] candidateThresholds(double[] inter, double[] intra) {
+        TreeSet<Double> values = new TreeSet<>();
+        Arrays.stream(inter).forEach(values::add);
+        Arrays.stream(intra).forEach(values::add);
+        TreeSet<Double> thresholds = new TreeSet<>(values);
+        thresholds.add(values.first() - 1);
+        thresholds.add(values.last() + 1);
+        Double previous = null;
+        for (double value : values) {
+            if (previous != null) {
+                thresholds.add(previous + ((value - previous) / 2));
+            }
+            previous = value;
+        }
+        return thresholds.stream().mapToDouble(Double::doubleValue).toArray();
+    }
+
+    private static double bruteFAR(double[] inter, double threshold) {
+        return Arrays.stream(inter).filter(distance -> distance > threshold).count() / (double) inter.length;
+    }
+
+    private static double bruteFRR(double[] intra, double threshold) {
+        return Arrays.stream(intra).filter(distance -> distance < threshold).count() / (double) intra.length;
+    }
+
+    private static double bruteAUC(double[] inter, double[] intra) {
+        double wins = 0;
+        for (double a : inter) {
+            for (double b : intra) {
+                wins += a < b ? 1 : a == b ? 0.5 : 0;
+            }
+        }
+        return wins / ((double) inter.length * intra.length);
+    }
+}